@@ -1,5 +1,7 @@
 package de.tuhh.vs;
 
+import java.nio.ByteBuffer;
+
 public class App
 {
 	
@@ -18,4 +20,18 @@ public class App
 	    }
 	    return new String(hexChars);
 	}
+
+	/**
+	 * Returns a hexadecimal String representation of the bytes between 0 and the limit of the passed buffer,
+	 * without changing its position. Works for read-only buffers as well
+	 * @param	buffer	Byte buffer from which to read
+	 * @return			The hexadecimal String representation of the buffers content
+	 */
+	public static String bytesToHex(ByteBuffer buffer) {
+		ByteBuffer copy = buffer.duplicate();
+		copy.rewind();
+		byte[] bytes = new byte[copy.remaining()];
+		copy.get(bytes);
+		return bytesToHex(bytes);
+	}
 }
@@ -0,0 +1,59 @@
+package de.tuhh.vs;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Handler that returns its response as a CompletionStage instead of calling a response callback.
+ * Implementations should not block the calling thread, but complete the stage from their own threads
+ * (e.g. Dispatcher with an I/O executor), so the network threads of the Server never wait for storage.
+ * A stage that completes with null sends no response, e.g. for error messages.
+ */
+@FunctionalInterface
+public interface AsyncHandler {
+
+	/**
+	 * Handles a request
+	 * @param	request	Message from the client
+	 * @return			The stage of the response
+	 */
+	CompletionStage<Message> handle(Message request);
+
+	/**
+	 * Adapts a handler of the callback form, which responds by calling its second argument at most once
+	 * @param	handler	The callback handler
+	 * @return			A handler whose stages complete when the callback is called, or never if it isn't
+	 */
+	static AsyncHandler from(BiConsumer<Message, Consumer<Message>> handler) {
+		return request -> {
+			CompletableFuture<Message> response = new CompletableFuture<Message>();
+			try {
+				handler.accept(request, (Message message) -> {
+					if (!response.complete(message)) {
+						System.out.println("Handler responded more than once to "+ request.type);
+					}
+				});
+			} catch (Throwable e) {
+				response.completeExceptionally(e);
+			}
+			return response;
+		};
+	}
+
+	/**
+	 * Returns this handler in the callback form, which calls the callback once the stage completes with a response
+	 * @return	The callback handler
+	 */
+	default BiConsumer<Message, Consumer<Message>> asConsumer() {
+		return (request, response) -> this.handle(request).whenComplete((message, error) -> {
+			if (error != null) {
+				response.accept(new Message(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+			} else if (message != null) {
+				response.accept(message);
+			}
+		});
+	}
+}
@@ -60,6 +60,22 @@ public class Booking extends PersistentObject {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * Booking-Constructor
+	 * Creates a new Booking-Object that shares an already padded purpose, e.g. one from a purpose dictionary
+	 * 
+	 * @param id		The id of the booking
+	 * @param purpose	The purpose, padded with '\0' to a multiple of 8 bytes, which must not be modified afterwards
+	 * @param amount	The amount of the booking(so the costs)
+	 * @param timestamp	The timestamp of the booking(time where it is made)
+	 */
+	Booking(int id, byte[] purpose, double amount, long timestamp) {
+		this.id = id;
+		this.purpose = purpose;
+		this.amount = amount;
+		this.timestamp = timestamp;
+	}
+
 	/**
 	 * Reads a booking from the a byte-buffer at the current position of the buffer 
 	 * and also increments the buffers position
@@ -124,6 +140,35 @@ public class Booking extends PersistentObject {
 	 */
 	public int getKey() { return id; }
 
+	/**
+	 * Returns the purpose of the booking without the trailing padding
+	 * @return	The purpose of the booking
+	 */
+	public String getPurpose() {
+		int length = this.purpose.length;
+		while (length > 0 && this.purpose[length - 1] == 0) { length--; }
+		return new String(this.purpose, 0, length, Message.charset);
+	}
+
+	/**
+	 * Returns the padded purpose bytes as they are written to the byte-buffer.
+	 * The returned array is not copied and must not be modified
+	 * @return	The padded purpose bytes of the booking
+	 */
+	byte[] getPurposeBytes() { return purpose; }
+
+	/**
+	 * Returns the amount of the booking
+	 * @return	The amount of the booking
+	 */
+	public double getAmount() { return amount; }
+
+	/**
+	 * Returns the timestamp of the booking
+	 * @return	The timestamp of the booking
+	 */
+	public long getTimestamp() { return timestamp; }
+
 	/**
 	 * Returns a string which contains the information of the booking
 	 * @return	A string representation of the booking
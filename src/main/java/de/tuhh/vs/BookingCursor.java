@@ -0,0 +1,91 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import de.tuhh.vs.Message.ProtocolError;
+
+/**
+ * Index-based cursor over the concatenated bookings in a ResolveGetAll (or ResolveQuery) body.
+ * Constructing the cursor only walks the length fields once to record the offset of every booking;
+ * the bookings themselves are read through a single BookingView that is moved to the requested index.
+ * Call materialize(int) or BookingView.toBooking() to get an independent Booking object.
+ */
+public class BookingCursor implements Iterable<BookingView> {
+
+	private final ByteBuffer body;
+	private final int[] offsets;
+	private final BookingView view;
+
+	/**
+	 * BookingCursor Constructor
+	 * Indexes all bookings between position and limit of 'body', without changing its position
+	 * @param	body			The message body, in Message.byteOrder
+	 * @throws	ProtocolError	Thrown if the body contains an invalid or truncated booking
+	 */
+	public BookingCursor(ByteBuffer body) throws ProtocolError {
+		this.body = body;
+		int[] offsets = new int[16];
+		int count = 0;
+		BookingView view = null;
+		for (int offset = body.position(); offset < body.limit(); offset += view.size()) {
+			view = view == null ? new BookingView(body, offset) : view.moveTo(offset);
+			if (count == offsets.length) { offsets = Arrays.copyOf(offsets, count * 2); }
+			offsets[count++] = offset;
+		}
+		this.offsets = Arrays.copyOf(offsets, count);
+		this.view = view;
+	}
+
+	/**
+	 * Returns the number of bookings in the body
+	 * @return	The number of bookings
+	 */
+	public int size() { return this.offsets.length; }
+
+	/**
+	 * Moves the shared view to the booking at 'index' and returns it.
+	 * The returned view is only valid until the next call to get() on this cursor
+	 * @param	index	The index of the booking, 0 <= index < size()
+	 * @return			The shared view, positioned at the booking
+	 */
+	public BookingView get(int index) {
+		return this.view.moveTo(this.offsets[index]);
+	}
+
+	/**
+	 * Returns a new view of the booking at 'index' that stays valid independent of this cursor
+	 * @param	index	The index of the booking, 0 <= index < size()
+	 * @return			A new view of the booking
+	 */
+	public BookingView view(int index) {
+		return new BookingView(this.body, this.offsets[index]);
+	}
+
+	/**
+	 * Materializes the booking at 'index' into a new Booking object
+	 * @param	index	The index of the booking, 0 <= index < size()
+	 * @return			A new Booking
+	 */
+	public Booking materialize(int index) {
+		return this.get(index).toBooking();
+	}
+
+	/**
+	 * Iterates over all bookings, moving the same shared view from one booking to the next
+	 * @return	An iterator of the shared view
+	 */
+	@Override
+	public Iterator<BookingView> iterator() {
+		return new Iterator<BookingView>() {
+			private int index = 0;
+			public boolean hasNext() { return this.index < BookingCursor.this.offsets.length; }
+			public BookingView next() {
+				if (!this.hasNext()) { throw new NoSuchElementException(); }
+				return BookingCursor.this.get(this.index++);
+			}
+		};
+	}
+}
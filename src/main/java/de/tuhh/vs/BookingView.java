@@ -0,0 +1,153 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+
+import de.tuhh.vs.Message.MessageType;
+import de.tuhh.vs.Message.ProtocolError;
+
+/**
+ * Flyweight read-only view of a booking that is encoded in a byte-buffer (in the format written by Booking.write()).
+ * All fields are read lazily from the buffer with absolute gets, so neither the buffers position is changed
+ * nor is anything copied. The same view can be moved over several bookings with moveTo().
+ * The view is only valid as long as the underlying buffer is not modified.
+ */
+public class BookingView {
+
+	private final ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * BookingView Constructor
+	 * Creates a view of the booking at 'offset' in 'buffer'
+	 * @param	buffer			The byte-buffer to read from, must be in Message.byteOrder
+	 * @param	offset			The absolute offset of the booking in the buffer
+	 * @throws	ProtocolError	Thrown if the booking doesn't fit in the buffer or its purpose length is invalid
+	 */
+	public BookingView(ByteBuffer buffer, int offset) throws ProtocolError {
+		this.buffer = buffer;
+		this.moveTo(offset);
+	}
+
+	/**
+	 * Reads a view at the current position of the buffer and also increments the buffers position,
+	 * just like the Booking(ByteBuffer) constructor
+	 * @param	buffer			The byte-buffer from which to read
+	 * @throws	ProtocolError	Thrown if the booking doesn't fit in the buffer or its purpose length is invalid
+	 */
+	public BookingView(ByteBuffer buffer) throws ProtocolError {
+		this(buffer, buffer.position());
+		buffer.position(this.offset + this.size());
+	}
+
+	/**
+	 * Moves this view to the booking at 'offset' in the same buffer
+	 * @param	offset			The absolute offset of the booking in the buffer
+	 * @return					this
+	 * @throws	ProtocolError	Thrown if the booking doesn't fit in the buffer or its purpose length is invalid
+	 */
+	public BookingView moveTo(int offset) throws ProtocolError {
+		this.offset = offset;
+		if (offset < 0 || offset + 8 > this.buffer.limit()) {
+			throw new ProtocolError(MessageType.InvalidBodyLength);
+		}
+		int length = this.purposeLength();
+		if (length < 0 || length > this.buffer.limit() - offset - (4 + 4 + 8 + 8)) {
+			throw new ProtocolError(MessageType.InvalidFieldLength);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the offset of the viewed booking in the buffer
+	 * @return	The absolute offset in the buffer
+	 */
+	public int offset() { return this.offset; }
+
+	/**
+	 * Returns the size of the viewed booking in the buffer (in bytes)
+	 * @return	The size of the booking in bytes
+	 */
+	public int size() {
+		return 4 + 4 + this.purposeLength() + 8 + 8;
+	}
+
+	/**
+	 * Returns the id of the viewed booking
+	 * @return	The id of the booking
+	 */
+	public int getKey() { return this.buffer.getInt(this.offset); }
+
+	/**
+	 * Returns the length of the padded purpose (in bytes)
+	 * @return	The length of the purpose
+	 */
+	public int purposeLength() { return this.buffer.getInt(this.offset + 4) * 8; }
+
+	/**
+	 * Decodes the purpose of the viewed booking without the trailing padding
+	 * @return	The purpose of the booking
+	 */
+	public String getPurpose() {
+		int start = this.offset + 4 + 4;
+		int length = this.purposeLength();
+		while (length > 0 && this.buffer.get(start + length - 1) == 0) { length--; }
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) { bytes[i] = this.buffer.get(start + i); }
+		return new String(bytes, Message.charset);
+	}
+
+	/**
+	 * Returns the amount of the viewed booking
+	 * @return	The amount of the booking
+	 */
+	public double getAmount() { return this.buffer.getDouble(this.offset + 4 + 4 + this.purposeLength()); }
+
+	/**
+	 * Returns the timestamp of the viewed booking
+	 * @return	The timestamp of the booking
+	 */
+	public long getTimestamp() { return this.buffer.getLong(this.offset + 4 + 4 + this.purposeLength() + 8); }
+
+	/**
+	 * Materializes the viewed booking into a new Booking object
+	 * @return	A new Booking with the same fields
+	 */
+	public Booking toBooking() {
+		ByteBuffer slice = this.buffer.duplicate();
+		slice.order(this.buffer.order());
+		slice.position(this.offset);
+		return new Booking(slice);
+	}
+
+	/**
+	 * Checks whether the viewed booking equals the passed booking in the sense
+	 * of having the same 'id', 'purpose', 'amount' and 'timestamp', without materializing the view
+	 * @param	that	The booking against which to check equality
+	 * @return			A boolean whether the viewed booking equals that passed one
+	 */
+	public boolean equals(Booking that) {
+		if (that == null || this.getKey() != that.getKey()) { return false; }
+		byte[] purpose = that.getPurposeBytes();
+		if (this.purposeLength() != purpose.length) { return false; }
+		int start = this.offset + 4 + 4;
+		for (int i = 0; i < purpose.length; i++) {
+			if (this.buffer.get(start + i) != purpose[i]) { return false; }
+		}
+		return this.getAmount() == that.getAmount()
+			&& this.getTimestamp() == that.getTimestamp();
+	}
+
+	/**
+	 * Returns a string which contains the information of the viewed booking
+	 * @return	A string representation of the booking
+	 */
+	@Override
+	public String toString() {
+		return "BookingView{ "
+				+"id: "+ this.getKey() +", "
+				+"purpose: \""+ this.getPurpose() +"\"(" + this.purposeLength() +"), "
+				+"amount: "+ this.getAmount() +", "
+				+"timestamp: "+ this.getTimestamp() +", "
+			+"}";
+	}
+}
@@ -0,0 +1,247 @@
+package de.tuhh.vs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Records the traffic of a server to a capture file, which can be played back with Replay.
+ * The reader threads of the server only copy each record into a queue, a background thread appends them
+ * to the file through memory mapped regions. If the queue is full, records are dropped instead of blocking the server.
+ * The file is a sequence of records, each of them:
+ * int size (of the rest of the record, 0 marks the end), byte kind, long time (nanoseconds since the capture started),
+ * long connection, followed by the complete frame (header and body) for requests,
+ * or by short messageId, byte type, int bodyLength, int crc32OfBody for responses.
+ */
+public class Capture implements AutoCloseable {
+
+	static final byte request = 1;
+	static final byte response = 2;
+	private static final int recordHeaderLength = 4 + 1 + 8 + 8;
+	private static final int regionLength = 64 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final BlockingQueue<byte[]> records;
+	private final Thread writer;
+	private final long start = System.nanoTime();
+	private volatile boolean closed = false;
+	private long dropped = 0;
+
+	private MappedByteBuffer region;
+	private long regionStart = 0; // file position of 'region'
+
+	/**
+	 * A single record read from a capture file
+	 */
+	public static class Record {
+		public byte kind;
+		public long time;
+		public long connection;
+		public short messageId;
+		public byte type;
+		/** the complete frame of a request, null for responses */
+		public byte[] frame;
+		/** the body length of a response */
+		public int length;
+		/** the CRC32 of the body of a response */
+		public int crc;
+	}
+
+	/**
+	 * Capture Constructor
+	 * Creates or truncates the capture file and starts the writer thread
+	 * @param	path	The path of the capture file
+	 * @param	queued	The maximum number of records waiting to be written
+	 * @throws	IOException	Thrown if the file can't be opened
+	 */
+	public Capture(String path, int queued) throws IOException {
+		this(path, queued, true);
+	}
+
+	/**
+	 * Capture Constructor
+	 * Same as Capture(path, queued), but the writer thread is only started by start() if 'start' is false,
+	 * so tests can fill the queue
+	 */
+	Capture(String path, int queued, boolean start) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.records = new ArrayBlockingQueue<byte[]>(queued);
+		this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, regionLength);
+		this.writer = new Thread(this::drain, "Capture "+ path);
+		this.writer.setDaemon(true);
+		if (start) { this.start(); }
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	void start() {
+		this.writer.start();
+	}
+
+	/**
+	 * Records a request frame
+	 * @param	connection	The sequence number of the connection
+	 * @param	header		The header of the frame, read from 0 to its limit
+	 * @param	body		The body of the frame, read from 0 to its limit
+	 */
+	public void request(long connection, ByteBuffer header, ByteBuffer body) {
+		int frameLength = header.limit() + body.limit();
+		ByteBuffer record = this.record(request, connection, frameLength);
+		record.put(header.array(), 0, header.limit());
+		record.put(body.array(), 0, body.limit());
+		this.offer(record.array());
+	}
+
+	/**
+	 * Records the type, length and checksum of a response
+	 * @param	connection	The sequence number of the connection
+	 * @param	messageId	The message id of the response
+	 * @param	message		The response, its body is read from 0 to its limit without changing its position
+	 */
+	public void response(long connection, short messageId, Message message) {
+		ByteBuffer record = this.record(response, connection, 2 + 1 + 4 + 4);
+		record.putShort(messageId);
+		record.put(message.type.get());
+		record.putInt(message.body != null ? message.body.limit() : 0);
+		record.putInt(Capture.crc(message.body));
+		this.offer(record.array());
+	}
+
+	private ByteBuffer record(byte kind, long connection, int length) {
+		ByteBuffer record = ByteBuffer.allocate(recordHeaderLength + length);
+		record.order(Message.byteOrder);
+		record.putInt(record.capacity() - 4);
+		record.put(kind);
+		record.putLong(System.nanoTime() - this.start);
+		record.putLong(connection);
+		return record;
+	}
+
+	/**
+	 * Queues a record, or counts it as dropped if the queue is full or the capture closed.
+	 * Runs under the same lock as close(), so every record queued before close() is written by drain()
+	 */
+	private synchronized void offer(byte[] record) {
+		if (this.closed) {
+			this.dropped++;
+		} else if (!this.records.offer(record) && this.dropped++ % 1000 == 0) {
+			System.out.println("Capture queue full, "+ this.dropped +" records dropped");
+		}
+	}
+
+	private void drain() {
+		try {
+			while (!this.closed || !this.records.isEmpty()) {
+				byte[] record = this.records.poll(100, TimeUnit.MILLISECONDS);
+				if (record == null) { continue; }
+				if (this.region.remaining() < record.length + 4) { // keep room for the end mark
+					long position = this.regionStart + this.region.position();
+					this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(regionLength, record.length + 4));
+					this.regionStart = position;
+				}
+				this.region.put(record);
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			System.out.println("Capture failed: "+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of records dropped because the queue was full or the capture already closed
+	 * @return	The number of dropped records
+	 */
+	public synchronized long dropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * Writes the queued records and closes the file
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (this.closed) { return; }
+			this.closed = true;
+		}
+		try {
+			this.writer.join();
+			long end = this.regionStart + this.region.position();
+			this.region.putInt(0);
+			this.region.force();
+			try {
+				this.file.setLength(end + 4);
+			} catch (IOException e) { } // not possible while mapped on some platforms, the end mark suffices
+			this.file.close();
+		} catch (InterruptedException | IOException e) {
+			System.out.println("Capture failed to close: "+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads all records of a capture file
+	 * @param	path	The path of the capture file
+	 * @return			The records in the order they were captured
+	 * @throws	IOException	Thrown if the file can't be read
+	 */
+	public static List<Record> read(String path) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		try (
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			FileChannel channel = file.getChannel();
+		) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(Message.byteOrder);
+			while (buffer.remaining() >= 4) {
+				int size = buffer.getInt();
+				if (size == 0) { break; }
+				int next = buffer.position() + size;
+				Record record = new Record();
+				record.kind = buffer.get();
+				record.time = buffer.getLong();
+				record.connection = buffer.getLong();
+				if (record.kind == request) {
+					record.frame = new byte[size - (recordHeaderLength - 4)];
+					buffer.get(record.frame);
+					record.messageId = ByteBuffer.wrap(record.frame).order(Message.byteOrder).getShort(1);
+					record.type = record.frame[3];
+				} else {
+					record.messageId = buffer.getShort();
+					record.type = buffer.get();
+					record.length = buffer.getInt();
+					record.crc = buffer.getInt();
+				}
+				buffer.position(next);
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the CRC32 of a body from 0 to its limit
+	 * @param	body	The body, may be null
+	 * @return			The checksum
+	 */
+	static int crc(ByteBuffer body) {
+		CRC32 crc = new CRC32();
+		if (body != null) {
+			ByteBuffer copy = body.duplicate();
+			copy.rewind();
+			crc.update(copy);
+		}
+		return (int) crc.getValue();
+	}
+}
@@ -7,8 +7,14 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -26,6 +32,14 @@ public class Client implements AutoCloseable {
 	private DataOutputStream out;
 	private Thread thread;
 	private Map<Short, CompletableFuture<Object>> futures = new HashMap<Short, CompletableFuture<Object>>();
+	private Set<Short> cursors = Collections.synchronizedSet(new HashSet<Short>()); // requests to resolve with a BookingCursor instead of a Vector<Booking>
+	private Map<Integer, byte[]> purposes = new HashMap<Integer, byte[]>(); // purpose dictionary received with ResolveQueryEncoded
+	private volatile int knownPurposeId = 0;
+	private final Map<Integer, Booking> ledger = new TreeMap<Integer, Booking>(); // local copy of the ledger for getAllCached(), by id
+	private long ledgerEpoch = 0; // version of 'ledger', both 0 while it isn't valid; guarded by 'ledger'
+	private long ledgerVersion = 0;
+	private List<Booking> ledgerView = null; // unmodifiable copy of 'ledger.values()', null after changes
+	private Map<Short, Booking[]> writes = Collections.synchronizedMap(new HashMap<Short, Booking[]>()); // new (or deleted) bookings of pending writes
 	
 	public Client(int port) throws UnknownHostException, IOException {
 		this.socket = new Socket(InetAddress.getLocalHost(), port);
@@ -82,10 +96,35 @@ public class Client implements AutoCloseable {
 								"\t("+ body.array().length +")"+ App.bytesToHex(body.array()));
 		
 						switch(type) { // TODO check expected types
-							case ResolveGetAll: {
+							case ResolveGetAll:
+							case ResolveQuery: {
+								if (this.cursors.remove(messageId)) {
+									this.futures.get(messageId).complete(new BookingCursor(body));
+								} else {
+									Vector<Booking> all = new Vector<Booking>();
+									while (body.position() < body.limit()) {
+										all.add(new Booking(body));
+									}
+									this.futures.get(messageId).complete(all);
+								}
+							} break;
+							case ResolveQueryEncoded: {
+								int lastId = body.getInt();
+								for (int count = body.getInt(); count > 0; count--) {
+									int id = body.getInt();
+									int length = body.getInt() * 8;
+									if (length < 0 || length > body.remaining()) { throw new ProtocolError(MessageType.InvalidFieldLength); }
+									byte[] purpose = new byte[length];
+									body.get(purpose);
+									this.purposes.put(id, purpose);
+								}
+								this.knownPurposeId = Math.max(this.knownPurposeId, lastId);
 								Vector<Booking> all = new Vector<Booking>();
 								while (body.position() < body.limit()) {
-									all.add(new Booking(body));
+									int id = body.getInt();
+									byte[] purpose = this.purposes.get(body.getInt());
+									if (purpose == null) { throw new Exception("Recived unknown purpose id"); }
+									all.add(new Booking(id, purpose, body.getDouble(), body.getLong()));
 								}
 								this.futures.get(messageId).complete(all);
 							} break;
@@ -99,9 +138,54 @@ public class Client implements AutoCloseable {
 							case ResolveEdit: {
 								this.futures.get(messageId).complete(null);
 							} break;
+							case ResolveInsertVersioned: {
+								if (body.limit() != 4 + 16) { throw new Exception("Recived packet of unexpedted length"); }
+								int id = body.getInt();
+								Booking[] written = this.writes.remove(messageId);
+								if (written != null) {
+									this.applyWrite(body, id, new Booking(id, written[0].getPurposeBytes(), written[0].getAmount(), written[0].getTimestamp()));
+								}
+								this.futures.get(messageId).complete(id);
+							} break;
+							case ResolveDeleteVersioned: {
+								if (body.limit() != 16) { throw new Exception("Recived packet of unexpedted length"); }
+								Booking[] written = this.writes.remove(messageId);
+								if (written != null) {
+									this.applyWrite(body, written[0].getKey(), null);
+								}
+								this.futures.get(messageId).complete(null);
+							} break;
+							case ResolveEditVersioned: {
+								if (body.limit() != 16) { throw new Exception("Recived packet of unexpedted length"); }
+								Booking[] written = this.writes.remove(messageId);
+								if (written != null) {
+									Booking now = written[0];
+									this.applyWrite(body, now.getKey(), new Booking(now.getKey(), now.getPurposeBytes(), now.getAmount(), now.getTimestamp()));
+								}
+								this.futures.get(messageId).complete(null);
+							} break;
+							case ResolveGetAllVersioned: {
+								synchronized (this.ledger) {
+									this.ledgerEpoch = body.getLong();
+									this.ledgerVersion = body.getLong();
+									this.ledger.clear();
+									while (body.position() < body.limit()) {
+										Booking booking = new Booking(body);
+										this.ledger.put(booking.getKey(), booking);
+									}
+									this.ledgerView = null;
+								}
+								this.futures.get(messageId).complete(this.ledgerView());
+							} break;
+							case ResolveNotModified: {
+								this.futures.get(messageId).complete(this.ledgerView());
+							} break;
 							case ErrorDeleteEntyChanged:
 							case ErrorChangeEntyChanged:
-							case ErrorChangeIdMismatch: {
+							case ErrorChangeIdMismatch:
+							case ErrorReadOnly:
+							case ErrorOverloaded:
+							case InvalidBodyLength: {
 								this.futures.get(messageId).completeExceptionally(new ProtocolError(type));
 							} break;
 							default: {
@@ -114,6 +198,8 @@ public class Client implements AutoCloseable {
 					} finally {
 						this.futures.get(messageId).cancel(false);
 						this.futures.remove(messageId);
+						this.cursors.remove(messageId);
+						this.writes.remove(messageId);
 						System.out.println("removed future for "+ messageId);
 					}
 					
@@ -174,14 +260,128 @@ public class Client implements AutoCloseable {
 		return future;
 	}
 	
+	/**
+	 * Like getAll(), but resolves to a BookingCursor over the received body instead of decoding every Booking
+	 * @return	A future of a BookingCursor
+	 * @throws	IOException	Thrown if the request can't be sent
+	 */
+	public CompletableFuture<Object> getAllCursor() throws IOException {
+		short messageId = ++Client.messageCounter;
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		this.futures.put(messageId, future);
+		this.cursors.add(messageId);
+		this.sendMessage(messageId, new Message(MessageType.CallGetAll, null));
+		return future;
+	}
+	
+	/**
+	 * Like query(), but the server sends each distinct purpose only once per client
+	 * and the bookings only reference them by id. Resolves to a Vector<Booking>
+	 * whose bookings share the purposes of the local dictionary
+	 * @param	query	The query to evaluate, or an empty Query to get all bookings
+	 * @return	A future of a Vector<Booking>
+	 * @throws	IOException	Thrown if the request can't be sent
+	 */
+	public CompletableFuture<Object> queryEncoded(Query query) throws IOException {
+		short messageId = ++Client.messageCounter;
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		this.futures.put(messageId, future);
+		ByteBuffer buffer = ByteBuffer.allocate(4 + query.size());
+		buffer.order(Message.byteOrder);
+		buffer.putInt(this.knownPurposeId);
+		query.write(buffer);
+		this.sendMessage(messageId, new Message(MessageType.CallQueryEncoded, buffer));
+		return future;
+	}
+	
+	/**
+	 * Like getAll(), but keeps a local copy of the ledger: the server only sends the bookings if they changed
+	 * since the version of that copy, otherwise it answers with an empty ResolveNotModified.
+	 * While the copy is loaded, this clients own inserts, edits and deletes are sent as their versioned variants,
+	 * whose acknowledgements contain the new version, so the copy is updated in place instead of being reloaded.
+	 * Resolves to an unmodifiable List<Booking> sorted by id, which is shared by all calls until the ledger changes,
+	 * so its bookings must not be modified
+	 * @return	A future of a List<Booking>
+	 * @throws	IOException	Thrown if the request can't be sent
+	 */
+	public CompletableFuture<Object> getAllCached() throws IOException {
+		short messageId = ++Client.messageCounter;
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		this.futures.put(messageId, future);
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.order(Message.byteOrder);
+		synchronized (this.ledger) {
+			buffer.putLong(this.ledgerEpoch);
+			buffer.putLong(this.ledgerVersion);
+		}
+		this.sendMessage(messageId, new Message(MessageType.CallGetAllIfChanged, buffer));
+		return future;
+	}
+	
+	/**
+	 * Decides whether a write is sent as its versioned variant, which is only useful while the local copy of the ledger is loaded,
+	 * and if so remembers the written booking until the acknowledgement arrives
+	 * @param	messageId	The id of the write request
+	 * @param	booking		The new booking, or the deleted one
+	 * @return				true if the write is to be sent as CallInsertVersioned, CallDeleteVersioned or CallEditVersioned
+	 */
+	private boolean versioned(short messageId, Booking booking) {
+		synchronized (this.ledger) {
+			if (this.ledgerEpoch == 0) { return false; }
+		}
+		this.writes.put(messageId, new Booking[] { booking });
+		return true;
+	}
+	
+	/**
+	 * Applies an acknowledged write of this client to the local copy of the ledger, if it directly follows the version of the copy.
+	 * If other writes happened in between, the copy is invalidated, so the next getAllCached() loads the whole ledger
+	 * @param	body	The body of the acknowledgement, positioned at the new version of the ledger
+	 * @param	id		The id of the written booking
+	 * @param	booking	The new booking, or null if it was deleted
+	 */
+	private void applyWrite(ByteBuffer body, int id, Booking booking) {
+		long epoch = body.getLong();
+		long version = body.getLong();
+		synchronized (this.ledger) {
+			if (epoch != this.ledgerEpoch || version <= this.ledgerVersion) { return; } // not loaded, or already contained
+			if (version != this.ledgerVersion + 1) {
+				this.ledgerEpoch = 0;
+				this.ledgerVersion = 0;
+				return;
+			}
+			if (booking != null) {
+				this.ledger.put(id, booking);
+			} else {
+				this.ledger.remove(id);
+			}
+			this.ledgerVersion = version;
+			this.ledgerView = null;
+		}
+	}
+	
+	/**
+	 * Returns the local copy of the ledger
+	 * @return	An unmodifiable list of the bookings sorted by id
+	 */
+	private List<Booking> ledgerView() {
+		synchronized (this.ledger) {
+			if (this.ledgerView == null) {
+				this.ledgerView = Collections.unmodifiableList(new ArrayList<Booking>(this.ledger.values()));
+			}
+			return this.ledgerView;
+		}
+	}
+	
 	public CompletableFuture<Object> insert(Booking booking) throws IOException {
 		short messageId = ++Client.messageCounter;
 		CompletableFuture<Object> future = new CompletableFuture<Object>();
 		this.futures.put(messageId, future);
+		boolean versioned = this.versioned(messageId, booking);
 		ByteBuffer buffer = ByteBuffer.allocate(booking.size());
 		buffer.order(Message.byteOrder);
 		booking.write(buffer);
-		this.sendMessage(messageId, new Message(MessageType.CallInsert, buffer));
+		this.sendMessage(messageId, new Message(versioned ? MessageType.CallInsertVersioned : MessageType.CallInsert, buffer));
 		return future;
 	}
 	
@@ -189,10 +389,11 @@ public class Client implements AutoCloseable {
 		short messageId = ++Client.messageCounter;
 		CompletableFuture<Object> future = new CompletableFuture<Object>();
 		this.futures.put(messageId, future);
+		boolean versioned = this.versioned(messageId, booking);
 		ByteBuffer buffer = ByteBuffer.allocate(booking.size());
 		buffer.order(Message.byteOrder);
 		booking.write(buffer);
-		this.sendMessage(messageId, new Message(MessageType.CallDelete, buffer));
+		this.sendMessage(messageId, new Message(versioned ? MessageType.CallDeleteVersioned : MessageType.CallDelete, buffer));
 		return future;
 	}
 	
@@ -200,11 +401,23 @@ public class Client implements AutoCloseable {
 		short messageId = ++Client.messageCounter;
 		CompletableFuture<Object> future = new CompletableFuture<Object>();
 		this.futures.put(messageId, future);
+		boolean versioned = this.versioned(messageId, now);
 		ByteBuffer buffer = ByteBuffer.allocate(old.size() + now.size());
 		buffer.order(Message.byteOrder);
 		old.write(buffer);
 		now.write(buffer);
-		this.sendMessage(messageId, new Message(MessageType.CallEdit, buffer));
+		this.sendMessage(messageId, new Message(versioned ? MessageType.CallEditVersioned : MessageType.CallEdit, buffer));
+		return future;
+	}
+	
+	public CompletableFuture<Object> query(Query query) throws IOException {
+		short messageId = ++Client.messageCounter;
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		this.futures.put(messageId, future);
+		ByteBuffer buffer = ByteBuffer.allocate(query.size());
+		buffer.order(Message.byteOrder);
+		query.write(buffer);
+		this.sendMessage(messageId, new Message(MessageType.CallQuery, buffer));
 		return future;
 	}
 	
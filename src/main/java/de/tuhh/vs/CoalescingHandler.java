@@ -0,0 +1,127 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Handler stage that sits between the Server and the actual handler and coalesces identical read requests:
+ * a read that arrives while an equal read (same type and body) is already being computed
+ * doesn't reach the handler but gets the same response once that computation completes.
+ * The response body is shared between all waiters as read-only buffers.
+ * To never answer a read with a result that predates a committed write, every write bumps a generation
+ * counter when it starts and again before its response stage completes, and reads only join computations of the same generation.
+ * Writes that don't pass through the handler, like those a ReplicationFollower applies to a replica, must be applied
+ * through write(Runnable) to bump the generation the same way.
+ */
+public class CoalescingHandler implements AsyncHandler {
+
+	/** the request types that only read and can be coalesced */
+	public static final Set<MessageType> reads = EnumSet.of(
+		MessageType.CallGetAll, MessageType.CallQuery, MessageType.CallQueryEncoded, MessageType.CallGetAllIfChanged
+	);
+	/** the request types that modify the ledger */
+	public static final Set<MessageType> writes = EnumSet.of(
+		MessageType.CallInsert, MessageType.CallDelete, MessageType.CallEdit,
+		MessageType.CallInsertVersioned, MessageType.CallDeleteVersioned, MessageType.CallEditVersioned
+	);
+
+	private final AsyncHandler handler;
+	private final ConcurrentHashMap<Key, CompletableFuture<Message>> pending = new ConcurrentHashMap<Key, CompletableFuture<Message>>();
+	private final AtomicLong generation = new AtomicLong(0);
+
+	/**
+	 * CoalescingHandler Constructor
+	 * @param	handler	The handler to pass the requests on to
+	 */
+	public CoalescingHandler(AsyncHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @param	request	Message from the client
+	 * @return			The stage of the response, shared with all coalesced requests
+	 */
+	@Override
+	public CompletionStage<Message> handle(Message request) {
+		if (writes.contains(request.type)) {
+			this.generation.incrementAndGet();
+			return this.handler.handle(request).whenComplete((message, error) -> this.generation.incrementAndGet());
+		}
+		if (!reads.contains(request.type)) {
+			return this.handler.handle(request);
+		}
+
+		Key key = new Key(request, this.generation.get());
+		CompletableFuture<Message> created = new CompletableFuture<Message>();
+		CompletableFuture<Message> running = this.pending.putIfAbsent(key, created);
+		if (running != null) {
+			System.out.println("Coalescing "+ request.type +" with running request");
+			return running.thenApply(CoalescingHandler::share);
+		}
+		try {
+			this.handler.handle(request).whenComplete((message, error) -> {
+				this.pending.remove(key, created);
+				if (error != null) {
+					created.complete(new Message(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+				} else {
+					created.complete(message);
+				}
+			});
+		} catch (Throwable e) {
+			this.pending.remove(key, created);
+			created.complete(new Message(e));
+		}
+		return created.thenApply(CoalescingHandler::share);
+	}
+
+	/**
+	 * Applies a write that doesn't pass through this handler, e.g. a replicated one,
+	 * so that no read started before it completes is joined by a read that arrives after it
+	 * @param	write	Modifies the ledger that the handler reads from
+	 */
+	public void write(Runnable write) {
+		this.generation.incrementAndGet();
+		try {
+			write.run();
+		} finally {
+			this.generation.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a new Message with the same type and a read-only view of the same body, in the same byte order
+	 */
+	private static Message share(Message message) {
+		if (message == null) { return null; }
+		return new Message(message.type, message.body != null ? message.body.asReadOnlyBuffer().order(message.body.order()) : null);
+	}
+
+	private static class Key {
+		final MessageType type;
+		final long generation;
+		final byte[] body;
+		final int hash;
+		Key(Message request, long generation) {
+			this.type = request.type;
+			this.generation = generation;
+			ByteBuffer body = request.body;
+			this.body = body != null ? Arrays.copyOfRange(body.array(), body.arrayOffset(), body.arrayOffset() + body.limit()) : new byte[0];
+			this.hash = (Long.hashCode(generation) * 31 + type.hashCode()) * 31 + Arrays.hashCode(this.body);
+		}
+		@Override public int hashCode() { return this.hash; }
+		@Override public boolean equals(Object other) {
+			if (!(other instanceof Key)) { return false; }
+			Key that = (Key) other;
+			return this.type == that.type && this.generation == that.generation && Arrays.equals(this.body, that.body);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+import de.tuhh.vs.Message.ProtocolError;
+
+/**
+ * Handler that dispatches requests through a table with one stage per type byte, instead of one central switch.
+ * Each stage consists of a decoder that parses the request body, an action that executes the request
+ * and an encoder that turns the result into the response, all created once when the stage is registered.
+ * New request types are added by registering a stage, so handlers are composed instead of edited.
+ * Requests without registered stage are answered with InvalidPacketType, error messages are only logged.
+ * As BiConsumer the dispatcher runs the stages synchronously on the calling thread,
+ * through handle() (i.e. as AsyncHandler dispatcher::handle) it runs them on its I/O executor, if it has one.
+ */
+public class Dispatcher implements BiConsumer<Message, Consumer<Message>> {
+
+	/**
+	 * Parses the body of a request
+	 * @param	<T>	The type of the decoded request
+	 */
+	public interface Decoder<T> { T decode(Message request) throws Exception; }
+
+	/**
+	 * Executes a decoded request
+	 * @param	<T>	The type of the decoded request
+	 * @param	<R>	The type of the result
+	 */
+	public interface Action<T, R> { R apply(Message request, T decoded) throws Exception; }
+
+	/**
+	 * Creates the response from the result of an action
+	 * @param	<R>	The type of the result
+	 */
+	public interface Encoder<R> { Message encode(R result) throws Exception; }
+
+	/** decoder for requests with empty body */
+	public static final Decoder<Object> none = request -> null;
+	/** decoder for requests with a single Booking as body */
+	public static final Decoder<Booking> booking = request -> new Booking(request.body);
+	/** decoder for requests with a Query as body */
+	public static final Decoder<Query> query = request -> new Query(request.body);
+	/** encoder for results that are the type of a response without body */
+	public static final Encoder<MessageType> empty = type -> new Message(type, null);
+	/** encoder for results that already are the response */
+	public static final Encoder<Message> message = message -> message;
+
+	/**
+	 * Returns an encoder for results that are the body of a response
+	 * @param	type	The type of the response
+	 * @return			The encoder
+	 */
+	public static Encoder<ByteBuffer> body(MessageType type) {
+		return buffer -> new Message(type, buffer);
+	}
+
+	private static class Stage<T, R> {
+		final Decoder<T> decoder;
+		final Action<T, R> action;
+		final Encoder<R> encoder;
+
+		Stage(Decoder<T> decoder, Action<T, R> action, Encoder<R> encoder) {
+			this.decoder = decoder;
+			this.action = action;
+			this.encoder = encoder;
+		}
+
+		Message run(Message request) throws Exception {
+			RequestEvents.Decode event = RequestEvents.decode(request);
+			T decoded = this.decoder.decode(request);
+			RequestEvents.commit(event);
+			return this.encoder.encode(this.action.apply(request, decoded));
+		}
+	}
+
+	private final Stage<?, ?>[] stages = new Stage<?, ?>[256]; // by (type.get() & 0xFF)
+	private final Executor io; // or null
+
+	/**
+	 * Dispatcher Constructor
+	 * Creates a dispatcher without stages that runs them on the calling thread
+	 */
+	public Dispatcher() {
+		this(null);
+	}
+
+	/**
+	 * Dispatcher Constructor
+	 * Creates a dispatcher without stages
+	 * @param	io	The executor that handle() runs the stages on (and thus their storage calls), or null for the calling thread
+	 */
+	public Dispatcher(Executor io) {
+		this.io = io;
+	}
+
+	/**
+	 * Registers or replaces the stage for a request type
+	 * @param	type	The request type
+	 * @param	decoder	Parses the body of the request
+	 * @param	action	Executes the request, is passed the request (e.g. for tracing) and the decoded body
+	 * @param	encoder	Creates the response from the result of the action, may return null to not respond
+	 * @return			this
+	 */
+	public <T, R> Dispatcher register(MessageType type, Decoder<T> decoder, Action<T, R> action, Encoder<R> encoder) {
+		this.stages[type.get() & 0xFF] = new Stage<T, R>(decoder, action, encoder);
+		return this;
+	}
+
+	/**
+	 * Handles the request synchronously on the calling thread
+	 * @param	request		Message from the client
+	 * @param	response	Consumer of Message that can be called once to respond to the request
+	 */
+	@Override
+	public void accept(Message request, Consumer<Message> response) {
+		Message message = this.respond(request);
+		if (message != null) { response.accept(message); }
+	}
+
+	/**
+	 * Handles the request on the I/O executor, or on the calling thread if there is none
+	 * or if there is no stage registered for its type
+	 * @param	request	Message from the client
+	 * @return			The stage of the response, which completes with null if there is none
+	 */
+	public CompletionStage<Message> handle(Message request) {
+		if (this.io == null || this.stages[request.type.get() & 0xFF] == null) {
+			return CompletableFuture.completedFuture(this.respond(request));
+		}
+		return CompletableFuture.supplyAsync(() -> this.respond(request), this.io);
+	}
+
+	/**
+	 * Runs the stage of the request
+	 * @return	The response, or null
+	 */
+	private Message respond(Message request) {
+		RequestEvents.Handle handle = RequestEvents.handle(request);
+		try {
+			Stage<?, ?> stage = this.stages[request.type.get() & 0xFF];
+			if (stage != null) {
+				return stage.run(request);
+			} else if ((request.type.get() & 0xFF) >= 0x40 && (request.type.get() & 0xFF) < 0x80) { // error messages are not answered
+				int length = request.body != null ? request.body.limit() : 0;
+				System.out.println("Server recieved error message, "+ request.type +":\n"+
+						(length != 0 ? "\t("+ length +")"+ App.bytesToHex(request.body) : "<no body>"));
+				return null;
+			} else {
+				return new Message(MessageType.InvalidPacketType, null);
+			}
+		} catch(ProtocolError e) {
+			return new Message(e.messageType, null);
+		} catch (Throwable e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+			return new Message(e);
+		} finally {
+			RequestEvents.commit(handle);
+		}
+	}
+}
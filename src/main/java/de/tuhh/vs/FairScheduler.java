@@ -0,0 +1,163 @@
+package de.tuhh.vs;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Executes the requests of all connections on a fixed number of worker threads, interleaving the connections
+ * by weighted round robin instead of first come, first served.
+ * Every connection submits its tasks to its own bounded Lane. The lanes with pending tasks wait in a ready queue;
+ * a worker takes the first lane, runs up to 'weight' of its tasks and then puts it back at the end of the queue.
+ * A lane is only ever run by one worker at a time, so the tasks of one connection still run in order.
+ * Tasks submitted with submitAsync() also keep their lane from running the next task until the stage they return completes,
+ * without occupying a worker meanwhile; once it completes, the lane continues its turn if it has any left.
+ */
+public class FairScheduler implements AutoCloseable {
+
+	private final ArrayDeque<Lane> ready = new ArrayDeque<Lane>();
+	private final Thread[] workers;
+	private boolean closed = false;
+
+	/**
+	 * A task that completes asynchronously
+	 */
+	public interface AsyncTask {
+		/**
+		 * Starts the task
+		 * @return	The stage that completes when the task is done, or null if it already is
+		 */
+		CompletionStage<?> start();
+	}
+
+	/**
+	 * The queue of tasks of a single connection
+	 */
+	public class Lane {
+		private final int weight;
+		private final int capacity;
+		private final ArrayDeque<AsyncTask> tasks = new ArrayDeque<AsyncTask>();
+		private boolean scheduled = false; // in 'ready', being run or waiting for a started task to complete
+		private int turn = 0; // tasks run in the current turn
+
+		private Lane(int weight, int capacity) {
+			this.weight = Math.max(1, weight);
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Queues a task for execution
+		 * @param	task	The task to run
+		 * @return			false if the lane is full or the scheduler closed, true otherwise
+		 */
+		public boolean submit(Runnable task) {
+			return this.submitAsync(() -> {
+				task.run();
+				return null;
+			});
+		}
+
+		/**
+		 * Queues a task whose successor in this lane only starts once the stage returned by the task completes
+		 * @param	task	The task to run
+		 * @return			false if the lane is full or the scheduler closed, true otherwise
+		 */
+		public boolean submitAsync(AsyncTask task) {
+			synchronized (FairScheduler.this) {
+				if (FairScheduler.this.closed || this.tasks.size() >= this.capacity) { return false; }
+				this.tasks.add(task);
+				if (!this.scheduled) {
+					this.scheduled = true;
+					FairScheduler.this.ready.add(this);
+					FairScheduler.this.notify();
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * FairScheduler Constructor
+	 * Starts the worker threads
+	 * @param	threads	The number of worker threads
+	 */
+	public FairScheduler(int threads) {
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			this.workers[i] = new Thread(this::work, "FairScheduler "+ i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Creates a new lane for a connection
+	 * @param	weight		The number of tasks the lane may run per turn
+	 * @param	capacity	The maximum number of queued tasks
+	 * @return				The new lane
+	 */
+	public Lane lane(int weight, int capacity) {
+		return new Lane(weight, capacity);
+	}
+
+	private void work() {
+		while (true) {
+			Lane lane;
+			synchronized (this) {
+				while (this.ready.isEmpty() && !this.closed) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (this.closed) { return; }
+				lane = this.ready.poll();
+			}
+			boolean waiting = false;
+			while (lane.turn < lane.weight) {
+				AsyncTask task;
+				synchronized (this) { task = lane.tasks.poll(); }
+				if (task == null) { break; }
+				lane.turn++;
+				CompletionStage<?> stage = null;
+				try {
+					stage = task.start();
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+				if (stage != null && !stage.toCompletableFuture().isDone()) {
+					waiting = true;
+					stage.whenComplete((result, error) -> this.resume(lane));
+					break;
+				}
+			}
+			if (!waiting) { this.resume(lane); }
+		}
+	}
+
+	/**
+	 * Puts a lane whose current task is done back into the ready queue, at the front if it has some of its turn left
+	 */
+	private synchronized void resume(Lane lane) {
+		if (lane.tasks.isEmpty()) {
+			lane.scheduled = false;
+			lane.turn = 0;
+		} else if (lane.turn < lane.weight) {
+			this.ready.addFirst(lane);
+			this.notify();
+		} else {
+			lane.turn = 0;
+			this.ready.add(lane);
+			this.notify();
+		}
+	}
+
+	/**
+	 * Stops the workers, queued tasks are dropped
+	 */
+	@Override
+	public synchronized void close() {
+		this.closed = true;
+		this.notifyAll();
+	}
+}
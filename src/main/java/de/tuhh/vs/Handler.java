@@ -1,6 +1,9 @@
 package de.tuhh.vs;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -10,6 +13,8 @@ import de.tuhh.vs.samples.common.db.DBException;
 import de.tuhh.vs.samples.common.db.FlatDB;
 
 public abstract class Handler {
+
+	private static final AtomicLong epochs = new AtomicLong(0); // the last epoch of a handler in this JVM
 	
 	/**
 	 * 
@@ -18,92 +23,282 @@ public abstract class Handler {
 	 * @throws	DBException	Thrown
 	 */
 	public static final BiConsumer<Message, Consumer<Message>> getHandler(String dbDirectory) throws DBException {
+		return Handler.getHandler(dbDirectory, null);
+	}
+
+	/**
+	 * Same as getHandler(dbDirectory), but appends all committed writes to the replication log.
+	 * Every write is applied to the database and to the QueryEngine under one lock, the log (or a private lock without log),
+	 * so concurrent writes can't leave the two in different states and the order of the log is the order in which they were applied
+	 * @param 	dbDirectory	The path to the database directory
+	 * @param	log			The replication log of the leader, or null
+	 * @return	A handler function that closures around the database and can be passed to the server
+	 * @throws	DBException	Thrown
+	 */
+	public static final BiConsumer<Message, Consumer<Message>> getHandler(String dbDirectory, ReplicationLog log) throws DBException {
+		return Handler.getDispatcher(dbDirectory, log, null);
+	}
+
+	/**
+	 * Same as getHandler(dbDirectory, log), but returns the Dispatcher itself, which can also be used asynchronously:
+	 * as AsyncHandler (dispatcher::handle) it runs the decoding, the storage calls and the encoding on 'io',
+	 * while as BiConsumer it still runs them on the calling thread (e.g. for ReplicationLeader snapshots).
+	 * Every committed write increments the version of the ledger, which lets CallGetAllIfChanged be answered
+	 * with ResolveNotModified if the client already has that version. The plain writes are acknowledged as before,
+	 * only CallInsertVersioned, CallDeleteVersioned and CallEditVersioned get the version in their acknowledgement
+	 * @param 	dbDirectory	The path to the database directory
+	 * @param	log			The replication log of the leader, or null
+	 * @param	io			The executor for the storage calls, sized independently of the network threads, or null
+	 * @return	The dispatcher that closures around the database
+	 * @throws	DBException	Thrown
+	 */
+	public static final Dispatcher getDispatcher(String dbDirectory, ReplicationLog log, Executor io) throws DBException {
 
 		final FlatDB<Booking> db = new FlatDB<Booking>(dbDirectory);
-		
-		/**
-		 * @param	request		Message from the client
-		 * @param	response	Consumer of Message that can be called once to respond to the request
-		 */
-		return (request, response) -> {
-
-			try {
-				switch (request.type) {
-					case ErrorCustom:
-					case InvalidProtocolVersion:
-					case InvalidPacketId:
-					case InvalidPacketType:
-					case InvalidBodyLength:
-					case InvalidBookingId:
-					case InvalidFieldLength:
-					case ErrorDeleteEntyChanged:
-					case ErrorChangeEntyChanged:
-					case ErrorChangeIdMismatch:
-					case ErrorNoSuchMonth: {
-						int length = request.body != null ? request.body.limit() : 0;
-						System.out.println("Server recieved error message, "+ request.type +":\n"+
-								(length != 0 ? "\t("+ length +")"+ App.bytesToHex(request.body.array()) : "<no body>"));
-					} break;
-					case CallGetAll: {
-						int length =  0;
-						for (Booking booking : db) { length += booking.size(); }
-						ByteBuffer buffer = ByteBuffer.allocate(length);
-						buffer.order(Message.byteOrder);
-						for (Booking booking : db) { booking.write(buffer); }
-						String print = ("Server bookings: [\n");
-							for (Booking booking : db) { print += ("\t"+ booking +",\n"); }
-						System.out.println(print +"]");
-						response.accept(new Message(MessageType.ResolveGetAll, buffer));
-					} break;
-					case CallInsert: {
-						Booking booking = new Booking(request.body);
-						db.insert(booking);
-						ByteBuffer buffer = ByteBuffer.allocate(4);
-						buffer.order(Message.byteOrder);
-						buffer.putInt(booking.getKey());
-						System.out.println("Server inserted "+ booking);
-						response.accept(new Message(MessageType.ResolveInsert, buffer));
-					} break;
-					case CallDelete: {
-						Booking booking = new Booking(request.body);
-						if (booking.equals(db.get(booking.getKey()))) {
-							db.delete(booking);
-							System.out.println("Server deleted "+ booking);
-							response.accept(new Message(MessageType.ResolveDelete, null));
-						} else {
-							response.accept(new Message(MessageType.ErrorDeleteEntyChanged, null));
-						}
-					} break;
-					case CallEdit: {
-						Booking old = new Booking(request.body);
-						Booking now = new Booking(request.body);
-						Booking current;
-						if (old == null || now == null || old.getKey() != now.getKey()
-							|| (current = db.get(old.getKey())) == null
-						) {
-							response.accept(new Message(MessageType.ErrorChangeIdMismatch, null));
-						} else if (!old.equals(current)) {
-							response.accept(new Message(MessageType.ErrorChangeEntyChanged, null));
-						} else {
-							db.update(now);
-							System.out.println("Server updated "+ old +"\nto "+ now);
-							response.accept(new Message(MessageType.ResolveEdit, null));
-						}
-					} break;
-					case ResolveGetAll:
-					case ResolveInsert:
-					case ResolveDelete:
-					case ResolveEdit: {
-						response.accept(new Message(MessageType.InvalidPacketType, null));
-					} break;
+		final Object writeLock = log != null ? log : new Object();
+		final PurposeDictionary purposes = new PurposeDictionary();
+		final QueryEngine engine = new QueryEngine(purposes, ForkJoinPool.commonPool());
+		for (Booking booking : db) { engine.insert(booking); }
+		final long epoch = Handler.epochs.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis())); // versions of earlier runs must not match
+		final AtomicLong version = new AtomicLong(1); // incremented with every committed write, inside the writeLock
+
+		Dispatcher dispatcher = new Dispatcher(io);
+		Handler.registerReads(dispatcher, engine);
+
+		dispatcher.register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> {
+			ByteBuffer buffer;
+			StringBuilder print = new StringBuilder("Server bookings: [\n");
+			synchronized (writeLock) { // all passes must see the same bookings
+				RequestEvents.Storage storage = RequestEvents.storage(request, "FlatDB.iterator");
+				int length =  0;
+				for (Booking booking : db) { length += booking.size(); }
+				buffer = ByteBuffer.allocate(length);
+				buffer.order(Message.byteOrder);
+				for (Booking booking : db) {
+					booking.write(buffer);
+					print.append("\t").append(booking).append(",\n");
 				}
-			} catch(ProtocolError e) {
-				response.accept(new Message(e.messageType, null));
-			} catch (Throwable e) {
-				response.accept(new Message(e));
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				RequestEvents.commit(storage);
+			}
+			System.out.println(print.append("]"));
+			return buffer;
+		}, Dispatcher.body(MessageType.ResolveGetAll));
+
+		dispatcher.register(MessageType.CallGetAllIfChanged, request -> {
+			if (request.body.remaining() != 16) { throw new ProtocolError(MessageType.InvalidBodyLength); }
+			return new long[] { request.body.getLong(), request.body.getLong() };
+		}, (request, known) -> {
+			if (known[0] == epoch && known[1] == version.get()) {
+				System.out.println("Server ledger not modified since "+ known[1]);
+				return new Message(MessageType.ResolveNotModified, null);
+			}
+			synchronized (writeLock) { // the bookings must be exactly those of the version
+				RequestEvents.Storage storage = RequestEvents.storage(request, "QueryEngine.query");
+				ByteBuffer bookings = engine.query(new Query());
+				RequestEvents.commit(storage);
+				ByteBuffer buffer = ByteBuffer.allocate(16 + bookings.limit());
+				buffer.order(Message.byteOrder);
+				buffer.putLong(epoch);
+				buffer.putLong(version.get());
+				buffer.put(bookings.array(), 0, bookings.limit());
+				System.out.println("Server sending ledger version "+ version.get());
+				return new Message(MessageType.ResolveGetAllVersioned, buffer);
+			}
+		}, Dispatcher.message);
+
+		Dispatcher.Action<Booking, Written> insert = (request, booking) -> {
+			synchronized (writeLock) {
+				RequestEvents.Storage storage = RequestEvents.storage(request, "FlatDB.insert");
+				db.insert(booking);
+				RequestEvents.commit(storage);
+				storage = RequestEvents.storage(request, "QueryEngine.insert");
+				engine.insert(booking);
+				RequestEvents.commit(storage);
+				if (log != null) { log.append(MessageType.CallInsert, booking); }
+				System.out.println("Server inserted "+ booking);
+				return new Written(MessageType.ResolveInsert, booking.getKey(), version.incrementAndGet());
+			}
+		};
+		dispatcher.register(MessageType.CallInsert, Dispatcher.booking, insert, Handler::acknowledge);
+		dispatcher.register(MessageType.CallInsertVersioned, Dispatcher.booking, insert, Handler.acknowledgeVersioned(epoch));
+
+		Dispatcher.Action<BookingView, Written> delete = (request, booking) -> {
+			synchronized (writeLock) {
+				RequestEvents.Storage storage = RequestEvents.storage(request, "FlatDB.get");
+				Booking current = db.get(booking.getKey());
+				RequestEvents.commit(storage);
+				if (!booking.equals(current)) { return new Written(MessageType.ErrorDeleteEntyChanged); }
+				storage = RequestEvents.storage(request, "FlatDB.delete");
+				db.delete(current);
+				RequestEvents.commit(storage);
+				storage = RequestEvents.storage(request, "QueryEngine.delete");
+				engine.delete(current.getKey());
+				RequestEvents.commit(storage);
+				if (log != null) { log.append(MessageType.CallDelete, current); }
+				System.out.println("Server deleted "+ current);
+				return new Written(MessageType.ResolveDelete, current.getKey(), version.incrementAndGet());
+			}
+		};
+		dispatcher.register(MessageType.CallDelete, request -> new BookingView(request.body), delete, Handler::acknowledge);
+		dispatcher.register(MessageType.CallDeleteVersioned, request -> new BookingView(request.body), delete, Handler.acknowledgeVersioned(epoch));
+
+		Dispatcher.Action<Edit, Written> edit = (request, decoded) -> {
+			if (decoded.old.getKey() != decoded.now.getKey()) { return new Written(MessageType.ErrorChangeIdMismatch); }
+			synchronized (writeLock) {
+				RequestEvents.Storage storage = RequestEvents.storage(request, "FlatDB.get");
+				Booking current = db.get(decoded.old.getKey());
+				RequestEvents.commit(storage);
+				if (current == null) { return new Written(MessageType.ErrorChangeIdMismatch); }
+				if (!decoded.old.equals(current)) { return new Written(MessageType.ErrorChangeEntyChanged); }
+				storage = RequestEvents.storage(request, "FlatDB.update");
+				db.update(decoded.now);
+				RequestEvents.commit(storage);
+				storage = RequestEvents.storage(request, "QueryEngine.update");
+				engine.update(decoded.now);
+				RequestEvents.commit(storage);
+				if (log != null) { log.append(MessageType.CallEdit, decoded.now); }
+				System.out.println("Server updated "+ decoded.old +"\nto "+ decoded.now);
+				return new Written(MessageType.ResolveEdit, decoded.now.getKey(), version.incrementAndGet());
 			}
 		};
+		dispatcher.register(MessageType.CallEdit, request -> new Edit(request.body), edit, Handler::acknowledge);
+		dispatcher.register(MessageType.CallEditVersioned, request -> new Edit(request.body), edit, Handler.acknowledgeVersioned(epoch));
+
+		return dispatcher;
+	}
+
+	/**
+	 * Result of a write: the type of the acknowledgement or error, and for acknowledgements
+	 * the id of the written booking and the version of the ledger after the write
+	 */
+	private static class Written {
+		final MessageType type;
+		final int id;
+		final long version;
+
+		Written(MessageType type, int id, long version) {
+			this.type = type;
+			this.id = id;
+			this.version = version;
+		}
+
+		Written(MessageType error) {
+			this(error, 0, 0);
+		}
+	}
+
+	/**
+	 * Encodes the result of a write as the plain acknowledgement: ResolveInsert with the 4-byte id, or an empty body
+	 */
+	private static Message acknowledge(Written written) {
+		if (written.type != MessageType.ResolveInsert) { return new Message(written.type, null); }
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.order(Message.byteOrder);
+		buffer.putInt(written.id);
+		return new Message(MessageType.ResolveInsert, buffer);
+	}
+
+	/**
+	 * Returns an encoder for the results of the versioned writes, whose acknowledgements also contain
+	 * the version of the ledger (epoch and counter) after the write; errors are encoded as by acknowledge()
+	 */
+	private static Dispatcher.Encoder<Written> acknowledgeVersioned(long epoch) {
+		return written -> {
+			MessageType type;
+			ByteBuffer buffer;
+			switch (written.type) {
+				case ResolveInsert: {
+					type = MessageType.ResolveInsertVersioned;
+					buffer = ByteBuffer.allocate(4 + 16);
+					buffer.order(Message.byteOrder);
+					buffer.putInt(written.id);
+				} break;
+				case ResolveDelete: {
+					type = MessageType.ResolveDeleteVersioned;
+					buffer = ByteBuffer.allocate(16);
+					buffer.order(Message.byteOrder);
+				} break;
+				case ResolveEdit: {
+					type = MessageType.ResolveEditVersioned;
+					buffer = ByteBuffer.allocate(16);
+					buffer.order(Message.byteOrder);
+				} break;
+				default: {
+					return new Message(written.type, null);
+				}
+			}
+			buffer.putLong(epoch);
+			buffer.putLong(written.version);
+			return new Message(type, buffer);
+		};
+	}
+
+	/**
+	 * Decoded body of a CallEdit, the old and the new booking
+	 */
+	static class Edit {
+		final BookingView old;
+		final Booking now;
+
+		Edit(ByteBuffer body) {
+			this.old = new BookingView(body);
+			this.now = new Booking(body);
+		}
+	}
+
+	/**
+	 * Decoded body of a CallQueryEncoded, the last known purpose id and the query
+	 */
+	private static class EncodedQuery {
+		final int knownId;
+		final Query query;
+
+		EncodedQuery(ByteBuffer body) {
+			this.knownId = body.getInt();
+			this.query = new Query(body);
+		}
+	}
+
+	/**
+	 * Registers the stages for CallQuery and CallQueryEncoded, which are answered from the in-memory engine
+	 * @param	dispatcher	The dispatcher to register with
+	 * @param	engine		The engine to query
+	 */
+	private static void registerReads(Dispatcher dispatcher, final QueryEngine engine) {
+		dispatcher.register(MessageType.CallQuery, Dispatcher.query, (request, query) -> {
+			RequestEvents.Storage storage = RequestEvents.storage(request, "QueryEngine.query");
+			ByteBuffer buffer = engine.query(query);
+			RequestEvents.commit(storage);
+			System.out.println("Server "+ query +" matched "+ buffer.limit() +" bytes");
+			return buffer;
+		}, Dispatcher.body(MessageType.ResolveQuery));
+
+		dispatcher.register(MessageType.CallQueryEncoded, request -> new EncodedQuery(request.body), (request, encoded) -> {
+			RequestEvents.Storage storage = RequestEvents.storage(request, "QueryEngine.queryEncoded");
+			ByteBuffer buffer = engine.queryEncoded(encoded.query, encoded.knownId);
+			RequestEvents.commit(storage);
+			System.out.println("Server "+ encoded.query +" matched "+ buffer.limit() +" bytes");
+			return buffer;
+		}, Dispatcher.body(MessageType.ResolveQueryEncoded));
+	}
+
+	/**
+	 * Returns a handler for a follower, which answers reads from the replicated in-memory ledger
+	 * and rejects all writes with ErrorReadOnly
+	 * @param	engine	The replica, as kept up to date by a ReplicationFollower
+	 * @return	A handler function that can be passed to the server
+	 */
+	public static final BiConsumer<Message, Consumer<Message>> getReplicaHandler(final QueryEngine engine) {
+
+		Dispatcher dispatcher = new Dispatcher();
+		Handler.registerReads(dispatcher, engine);
+		dispatcher.register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> engine.query(new Query()), Dispatcher.body(MessageType.ResolveGetAll));
+		for (MessageType type : new MessageType[] {
+			MessageType.CallInsert, MessageType.CallDelete, MessageType.CallEdit,
+			MessageType.CallInsertVersioned, MessageType.CallDeleteVersioned, MessageType.CallEditVersioned
+		}) {
+			dispatcher.register(type, Dispatcher.none, (request, none) -> MessageType.ErrorReadOnly, Dispatcher.empty);
+		}
+		return dispatcher;
 	}
 }
@@ -1,5 +1,7 @@
 package de.tuhh.vs;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
@@ -13,6 +15,8 @@ public class Message {
 	
 	public MessageType type;
 	public ByteBuffer body = null;
+	public short id = 0; // only set for messages returned by read() and requests passed to the handler by the server
+	public long connection = 0; // only set for requests passed to the handler by the server
 	
 	/**
 	 * Message Constructor
@@ -38,6 +42,61 @@ public class Message {
 		}
 	}
 	
+	/**
+	 * Encodes this message as a complete packet (header and body) with the passed message id.
+	 * The body is read from 0 to its limit without changing its position
+	 * @param	messageId	The id of the packet
+	 * @return				The bytes to send
+	 */
+	public byte[] frame(short messageId) {
+		int length = this.body != null ? this.body.limit() : 0;
+		ByteBuffer buffer = ByteBuffer.allocate(length + Message.headerLength);
+		buffer.order(Message.byteOrder);
+		buffer.put((byte) Message.version);
+		buffer.putShort(messageId);
+		buffer.put(this.type.get());
+		buffer.putLong(length);
+		if (this.body != null) {
+			ByteBuffer body = this.body.duplicate();
+			body.rewind();
+			buffer.put(body);
+		}
+		return buffer.array();
+	}
+	
+	/**
+	 * Reads a complete packet from the stream and returns it as a Message with its id set
+	 * @param	in				The stream to read from
+	 * @return					The received message
+	 * @throws	IOException		Thrown if the stream ends or fails
+	 * @throws	ProtocolError	Thrown for an invalid version, type or body length
+	 */
+	public static Message read(DataInputStream in) throws IOException, ProtocolError {
+		ByteBuffer header = ByteBuffer.allocate(Message.headerLength);
+		header.order(Message.byteOrder);
+		in.readFully(header.array());
+		if (header.get() != Message.version) {
+			throw new ProtocolError(MessageType.InvalidProtocolVersion);
+		}
+		short id = header.getShort();
+		MessageType type;
+		try {
+			type = MessageType.from(header.get());
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolError(MessageType.InvalidPacketType);
+		}
+		long length = header.getLong();
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new ProtocolError(MessageType.InvalidBodyLength);
+		}
+		ByteBuffer body = ByteBuffer.allocate((int) length);
+		body.order(Message.byteOrder);
+		in.readFully(body.array());
+		Message message = new Message(type, body);
+		message.id = id;
+		return message;
+	}
+	
 	
 	/**
 	 * All the valid MessageTypes
@@ -54,16 +113,38 @@ public class Message {
 		ErrorChangeEntyChanged(0x48), // Fehler: Bearbeiten abgebrochen, da Buchung auf Server verndert wurde.
 		ErrorChangeIdMismatch(0x49), // Fehler: Bearbeiten abgebrochen, da IDs nicht bereinstimmen.
 /*why?*/ErrorNoSuchMonth(0x4A), // Fehler: Monat existiert nicht.
+		ErrorReadOnly(0x4B), // Fehler: Server ist ein Replikat und nimmt keine nderungen an.
+		ErrorOverloaded(0x4C), // Fehler: Server ist berlastet, Anfrage wurde nicht bearbeitet. Spter erneut versuchen.
 		CallGetAll(0x81), // Fordert alle Buchungen im Haushaltsbuch an. Body ist leer, d.h., Body-Lnge: 0.
 		CallInsert(0x82), // Hinzufgen einer neuen Buchung. Body enthlt Buchung im Format wie dargestellt in Abbildung 2. Die Buchungs-ID wird ignoriert.
 		CallDelete(0x83), // Lschen einer Buchung. Body enthlt Buchung im Format wie dargestellt in Abbildung 2. Nur wenn ID, Buchungstext und Buchungszeitpunkt bereinstimmen, lscht Server Eintrag auf Datenbank
 		CallEdit(0x84), // Buchung bearbeiten. Body enthlt zwei Buchungen. Zuerst der alte, zu berschreibene Eintrag, gefolgt vom neuen Eintrag. Die IDs beider Eintrge mssen identisch sein.
+		CallQuery(0x85), // Gefilterte Abfrage. Body enthlt aneinandergehngte Prdikate im Format wie in Query beschrieben, die alle erfllt sein mssen.
+		CallQueryEncoded(0x86), // Wie CallQuery, aber mit Zweck-Wrterbuch. Body enthlt 4-byte ID des letzten bekannten Wrterbuch-Eintrags (oder 0), gefolgt von der Abfrage.
+		CallReplicate(0x87), // Replikation abonnieren (nur auf dem Replikations-Port). Body enthlt 8-byte Epoche und 8-byte Sequenznummer der zuletzt angewandten nderung.
+		CallGetAllIfChanged(0x88), // Bedingte Abfrage aller Buchungen. Body enthlt die 16-byte Version (8-byte Epoche, 8-byte Zhler) des Haushaltsbuchs, die der Client kennt, oder Nullen.
+		CallInsertVersioned(0x89), // Wie CallInsert, aber die Besttigung ist ResolveInsertVersioned.
+		CallDeleteVersioned(0x8A), // Wie CallDelete, aber die Besttigung ist ResolveDeleteVersioned.
+		CallEditVersioned(0x8B), // Wie CallEdit, aber die Besttigung ist ResolveEditVersioned.
 		ResolveGetAll(0xA1), // Liste aller Eintrge im Haushaltsbuch. Body enthlt aneinandergehngte Buchungen im Format wie dargestellt in Abbildung 2.
 		ResolveInsert(0xA2), // Besttigung von Hinzufgen. Body enthlt 4-byte Buchungs-ID.
 		ResolveDelete(0xA3), // Besttigung von Lschen. Body ist leer, d.h., Body-Lnge: 0.
-		ResolveEdit(0xA4); // Besttigung von Bearbeiten. Body ist leer, d.h., Body-Lnge: 0.
+		ResolveEdit(0xA4), // Besttigung von Bearbeiten. Body ist leer, d.h., Body-Lnge: 0.
+		ResolveQuery(0xA5), // Liste aller Eintrge, die der Abfrage entsprechen. Body im Format wie bei ResolveGetAll.
+		ResolveQueryEncoded(0xA6), // Wrterbuch-Delta und Liste aller Eintrge, die der Abfrage entsprechen, mit Zweck-IDs statt Zwecken (siehe QueryEngine.queryEncoded).
+		ResolveReplicateSnapshot(0xA7), // Stand des Haushaltsbuchs. Body enthlt 8-byte Epoche, 8-byte Sequenznummer, gefolgt von Buchungen wie bei ResolveGetAll.
+		ResolveReplicateEntry(0xA8), // Eine nderung. Body enthlt 8-byte Sequenznummer, 1-byte Typ (CallInsert, CallDelete oder CallEdit) und die neue Buchung.
+		ResolveGetAllVersioned(0xA9), // Liste aller Eintrge mit Version. Body enthlt die 16-byte Version des Haushaltsbuchs, gefolgt von Buchungen wie bei ResolveGetAll.
+		ResolveNotModified(0xAA), // Das Haushaltsbuch hat sich seit der angegebenen Version nicht gendert. Body ist leer, d.h., Body-Lnge: 0.
+		ResolveInsertVersioned(0xAB), // Besttigung von CallInsertVersioned. Body enthlt 4-byte Buchungs-ID, gefolgt von der 16-byte Version des Haushaltsbuchs nach der nderung.
+		ResolveDeleteVersioned(0xAC), // Besttigung von CallDeleteVersioned. Body enthlt die 16-byte Version des Haushaltsbuchs nach der nderung.
+		ResolveEditVersioned(0xAD); // Besttigung von CallEditVersioned. Body enthlt die 16-byte Version des Haushaltsbuchs nach der nderung.
 
 		private byte self;
+		private static final MessageType[] table = new MessageType[256]; // by (self & 0xFF)
+		static {
+			for (MessageType item : MessageType.values()) { table[item.self & 0xFF] = item; }
+		}
 		
 		/**
 		 * MessageType Constructor
@@ -80,15 +161,15 @@ public class Message {
 		
 		/**
 		 * Returns the MessageType whos .get() method returns the value 'it'
+		 * Constant time lookup in a table indexed by the unsigned byte
 		 * @param	it	The message id of the wanted MessageType
 		 * @return		The wanted MessageType
 		 * @throws	IllegalArgumentException	Thrown for invalid message id
 		 */
 		public static MessageType from(byte it) throws IllegalArgumentException {
-			for (MessageType item : MessageType.values()) {
-				if (item.self == it) { return item; }
-			}
-			throw new IllegalArgumentException("Invalid message id: "+ it);
+			MessageType item = table[it & 0xFF];
+			if (item == null) { throw new IllegalArgumentException("Invalid message id: "+ it); }
+			return item;
 		}
 		
 		/**
@@ -0,0 +1,187 @@
+package de.tuhh.vs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of outgoing frames for a single client connection, drained by its own writer thread.
+ * Producers (the handler, possibly on the thread of another connection) never block on the socket,
+ * they only append the frame to the queue.
+ * Once more than 'highWatermark' bytes are queued the connection counts as paused: its reader should stop
+ * reading requests (see awaitWritable()) until the queue drained to 'lowWatermark' bytes.
+ * A client that stays paused for longer than 'evictAfter' milliseconds, or whose queue would grow
+ * beyond 'maxQueued' bytes, is evicted by closing its socket.
+ * A shared watchdog thread also evicts clients that stay paused, or on which a single write blocks
+ * for longer than 'evictAfter', so a client that neither reads nor sends can't keep its writer thread alive.
+ */
+public class OutboundQueue implements AutoCloseable {
+
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "OutboundQueue watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final Server.Config config;
+	private final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+	private final Thread writer;
+	private final ScheduledFuture<?> check;
+
+	private long queued = 0; // bytes in 'frames'
+	private long pausedSince = -1; // currentTimeMillis() when the high watermark was exceeded, or -1
+	private long writingSince = -1; // currentTimeMillis() when the writer started its current write or flush, or -1
+	private boolean closed = false;
+
+	/**
+	 * OutboundQueue Constructor
+	 * Creates the queue, starts its writer thread and registers it with the watchdog
+	 * @param	socket	The socket of the client, closed on eviction
+	 * @param	out		The stream to write the frames to
+	 * @param	config	The watermarks and eviction limits
+	 */
+	public OutboundQueue(Socket socket, OutputStream out, Server.Config config) {
+		this.socket = socket;
+		this.out = out;
+		this.config = config;
+		this.writer = new Thread(this::drain, "OutboundQueue "+ socket.getRemoteSocketAddress());
+		this.writer.setDaemon(true);
+		long period = Math.max(10, config.evictAfter / 10);
+		this.check = OutboundQueue.watchdog.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+		this.writer.start();
+	}
+
+	/**
+	 * Appends a complete frame to the queue without blocking
+	 * @param	frame		The bytes to send, must not be modified afterwards
+	 * @throws	IOException	Thrown if the connection is closed or was evicted by this call
+	 */
+	public synchronized void offer(byte[] frame) throws IOException {
+		if (this.closed) {
+			throw new IOException("Connection closed");
+		}
+		if (this.queued > 0 && this.queued + frame.length > this.config.maxQueued) {
+			this.evict("more than "+ this.config.maxQueued +" bytes queued");
+			throw new IOException("Connection evicted");
+		}
+		this.frames.add(frame);
+		this.queued += frame.length;
+		if (this.pausedSince < 0 && this.queued > this.config.highWatermark) {
+			this.pausedSince = System.currentTimeMillis();
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Blocks while the connection is paused. Evicts the client if it stays paused for longer than 'evictAfter'
+	 * @return	true if reading may continue, false if the connection is closed
+	 * @throws	InterruptedException	Thrown if the waiting thread is interrupted
+	 */
+	public synchronized boolean awaitWritable() throws InterruptedException {
+		while (this.pausedSince >= 0 && !this.closed) {
+			long left = this.pausedSince + this.config.evictAfter - System.currentTimeMillis();
+			if (left <= 0) {
+				this.evict("paused for more than "+ this.config.evictAfter +"ms");
+				break;
+			}
+			this.wait(left);
+		}
+		return !this.closed;
+	}
+
+	/**
+	 * Returns the number of bytes currently queued
+	 * @return	The number of queued bytes
+	 */
+	public synchronized long queued() {
+		return this.queued;
+	}
+
+	/**
+	 * Stops accepting frames and waits up to 'closeTimeout' milliseconds for the writer
+	 * to send the frames that are already queued
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			this.closed = true;
+			this.notifyAll();
+		}
+		if (Thread.currentThread() == this.writer) { return; }
+		try {
+			this.writer.join(this.config.closeTimeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run by the watchdog: evicts the client if it stayed paused or a write blocked for longer than 'evictAfter'
+	 */
+	private synchronized void check() {
+		if (this.closed) { return; }
+		long now = System.currentTimeMillis();
+		if (this.writingSince >= 0 && now - this.writingSince > this.config.evictAfter) {
+			this.evict("not reading for more than "+ this.config.evictAfter +"ms");
+		} else if (this.pausedSince >= 0 && now - this.pausedSince > this.config.evictAfter) {
+			this.evict("paused for more than "+ this.config.evictAfter +"ms");
+		}
+	}
+
+	private void evict(String reason) {
+		System.out.println("Server evicting slow client "+ this.socket.getRemoteSocketAddress() +": "+ reason);
+		this.closed = true;
+		this.frames.clear();
+		this.queued = 0;
+		this.notifyAll();
+		try {
+			this.socket.close();
+		} catch (IOException e) { }
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				byte[] frame;
+				synchronized (this) {
+					while (this.frames.isEmpty() && !this.closed) { this.wait(); }
+					if (this.frames.isEmpty()) { break; }
+					frame = this.frames.peek();
+					this.writingSince = System.currentTimeMillis();
+				}
+				this.out.write(frame);
+				synchronized (this) {
+					if (this.frames.peek() == frame) { // not cleared by evict()
+						this.frames.poll();
+						this.queued -= frame.length;
+					}
+					if (this.pausedSince >= 0 && this.queued <= this.config.lowWatermark) {
+						this.pausedSince = -1;
+						this.notifyAll();
+					}
+					if (!this.frames.isEmpty()) { continue; }
+					this.writingSince = System.currentTimeMillis();
+				}
+				this.out.flush();
+				synchronized (this) { this.writingSince = -1; }
+			}
+			this.out.flush();
+		} catch (IOException | InterruptedException e) {
+			synchronized (this) {
+				this.closed = true;
+				this.frames.clear();
+				this.queued = 0;
+				this.notifyAll();
+			}
+		} finally {
+			this.check.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package de.tuhh.vs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe dictionary of the distinct (padded) purposes of all bookings.
+ * Every distinct purpose gets an int id that is never reused, so a purpose that was removed and
+ * interned again gets a new id. Ids start at 1, 0 is never assigned.
+ * Each acquire() must be matched by a release(); entries whose reference count drops to zero are removed.
+ */
+public class PurposeDictionary {
+
+	private final ConcurrentHashMap<Key, Entry> byBytes = new ConcurrentHashMap<Key, Entry>();
+	private final ConcurrentHashMap<Integer, Entry> byId = new ConcurrentHashMap<Integer, Entry>();
+	private final AtomicInteger lastId = new AtomicInteger(0);
+
+	/**
+	 * Interns the purpose and increments its reference count
+	 * @param	purpose	The padded purpose bytes, which must not be modified afterwards
+	 * @return			The id of the purpose
+	 */
+	public int acquire(byte[] purpose) {
+		Key key = new Key(purpose);
+		while (true) {
+			Entry entry = this.byBytes.computeIfAbsent(key, k -> {
+				Entry created = new Entry(this.lastId.incrementAndGet(), k);
+				this.byId.put(created.id, created);
+				return created;
+			});
+			for (int refs = entry.refs.get(); refs >= 0; refs = entry.refs.get()) {
+				if (entry.refs.compareAndSet(refs, refs + 1)) { return entry.id; }
+			}
+			// the entry is just being removed, wait for that to finish and create a new one
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Decrements the reference count of the purpose and removes it if it is no longer referenced
+	 * @param	id	The id returned by acquire()
+	 * @throws	IllegalArgumentException	Thrown if the id is unknown
+	 */
+	public void release(int id) throws IllegalArgumentException {
+		Entry entry = this.byId.get(id);
+		if (entry == null) { throw new IllegalArgumentException("Unknown purpose id: "+ id); }
+		if (entry.refs.decrementAndGet() == 0 && entry.refs.compareAndSet(0, -1)) {
+			this.byId.remove(id, entry);
+			this.byBytes.remove(entry.key, entry);
+		}
+	}
+
+	/**
+	 * Returns the padded purpose bytes of a referenced id
+	 * @param	id	The id returned by acquire()
+	 * @return		The purpose bytes, which must not be modified, or null if the id is unknown
+	 */
+	public byte[] get(int id) {
+		Entry entry = this.byId.get(id);
+		return entry != null ? entry.key.bytes : null;
+	}
+
+	/**
+	 * Returns the highest id assigned so far
+	 * @return	The highest id, or 0 if none was assigned yet
+	 */
+	public int lastId() {
+		return this.lastId.get();
+	}
+
+	/**
+	 * Returns the number of distinct purposes currently in the dictionary
+	 * @return	The number of entries
+	 */
+	public int size() {
+		return this.byId.size();
+	}
+
+	/**
+	 * Returns the ids of all current entries with from < id <= to, in no particular order
+	 * @param	from	Exclusive lower bound
+	 * @param	to		Inclusive upper bound
+	 * @return			A list of ids
+	 */
+	public List<Integer> ids(int from, int to) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Integer id : this.byId.keySet()) {
+			if (from < id && id <= to) { ids.add(id); }
+		}
+		return ids;
+	}
+
+	private static class Entry {
+		final int id;
+		final Key key;
+		final AtomicInteger refs = new AtomicInteger(0);
+		Entry(int id, Key key) { this.id = id; this.key = key; }
+	}
+
+	private static class Key {
+		final byte[] bytes;
+		final int hash;
+		Key(byte[] bytes) { this.bytes = bytes; this.hash = Arrays.hashCode(bytes); }
+		@Override public int hashCode() { return this.hash; }
+		@Override public boolean equals(Object that) {
+			return that instanceof Key && Arrays.equals(this.bytes, ((Key) that).bytes);
+		}
+	}
+}
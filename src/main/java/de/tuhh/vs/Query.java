@@ -0,0 +1,312 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.tuhh.vs.Message.MessageType;
+import de.tuhh.vs.Message.ProtocolError;
+
+/**
+ * A conjunction of predicates over the fields of a booking, as sent in the body of a CallQuery.
+ * On the wire a query is a sequence of predicates, each of which starts with its one byte Operator:
+ * 	IdRange:			int from, int to (inclusive)
+ * 	AmountRange:		double min, double max (inclusive)
+ * 	TimestampRange:		long from, long to (inclusive)
+ * 	PurposePrefix,
+ * 	PurposeContains:	int length/8, byte[length] text, padded with '\0' like Booking.purpose
+ * A query without any predicates matches every booking.
+ */
+public class Query {
+
+	private final List<Predicate> predicates = new ArrayList<Predicate>();
+
+	/**
+	 * Query Constructor
+	 * Creates an empty query that matches all bookings
+	 */
+	public Query() { }
+
+	/**
+	 * Reads a query from the byte-buffer, starting at the current position and up to its limit
+	 * @param	buffer			The byte-buffer from which to read
+	 * @throws	ProtocolError	Thrown in case of invalid field lengths
+	 * @throws	IllegalArgumentException	Thrown for unknown operators
+	 */
+	public Query(ByteBuffer buffer) throws ProtocolError, IllegalArgumentException {
+		while (buffer.position() < buffer.limit()) {
+			this.predicates.add(new Predicate(buffer));
+		}
+	}
+
+	/**
+	 * Restricts the query to bookings with from <= id <= to
+	 * @return	this
+	 */
+	public Query idBetween(int from, int to) {
+		Predicate it = new Predicate(Operator.IdRange);
+		it.from = from; it.to = to;
+		this.predicates.add(it);
+		return this;
+	}
+
+	/**
+	 * Restricts the query to bookings with min <= amount <= max
+	 * @return	this
+	 */
+	public Query amountBetween(double min, double max) {
+		Predicate it = new Predicate(Operator.AmountRange);
+		it.min = min; it.max = max;
+		this.predicates.add(it);
+		return this;
+	}
+
+	/**
+	 * Restricts the query to bookings with from <= timestamp <= to
+	 * @return	this
+	 */
+	public Query timestampBetween(long from, long to) {
+		Predicate it = new Predicate(Operator.TimestampRange);
+		it.from = from; it.to = to;
+		this.predicates.add(it);
+		return this;
+	}
+
+	/**
+	 * Restricts the query to bookings whose purpose starts with 'prefix'
+	 * @return	this
+	 */
+	public Query purposeStartsWith(String prefix) {
+		Predicate it = new Predicate(Operator.PurposePrefix);
+		it.text = prefix.getBytes(Message.charset);
+		this.predicates.add(it);
+		return this;
+	}
+
+	/**
+	 * Restricts the query to bookings whose purpose contains 'text'
+	 * @return	this
+	 */
+	public Query purposeContains(String text) {
+		Predicate it = new Predicate(Operator.PurposeContains);
+		it.text = text.getBytes(Message.charset);
+		this.predicates.add(it);
+		return this;
+	}
+
+	/**
+	 * Returns the predicates of this query, all of which have to match
+	 * @return	An unmodifiable list of the predicates
+	 */
+	public List<Predicate> predicates() {
+		return Collections.unmodifiableList(this.predicates);
+	}
+
+	/**
+	 * Tests whether a single booking matches this query
+	 * @param	booking	The booking to test
+	 * @return			true if all predicates match
+	 */
+	public boolean matches(Booking booking) {
+		byte[] purpose = booking.getPurposeBytes();
+		for (Predicate it : this.predicates) {
+			if (!it.matches(booking.getKey(), booking.getAmount(), booking.getTimestamp(), purpose, 0, purpose.length)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the size of this query needed to write to the byte-buffer(in bytes)
+	 * @return	The size of the query in bytes
+	 */
+	public int size() {
+		int size = 0;
+		for (Predicate it : this.predicates) { size += it.size(); }
+		return size;
+	}
+
+	/**
+	 * Writes the query into the byte-buffer at the current position of the buffer
+	 * and also increments the buffer position
+	 * @param	buffer	The byte-buffer to which to write
+	 */
+	public void write(ByteBuffer buffer) {
+		for (Predicate it : this.predicates) { it.write(buffer); }
+	}
+
+	/**
+	 * Returns a string representation of the query
+	 * @return	The string representing the query
+	 */
+	@Override
+	public String toString() {
+		return "Query"+ this.predicates;
+	}
+
+	/**
+	 * All the valid predicate operators
+	 */
+	public enum Operator {
+		IdRange(0x01),
+		AmountRange(0x02),
+		TimestampRange(0x03),
+		PurposePrefix(0x04),
+		PurposeContains(0x05);
+
+		private byte self;
+
+		Operator(int it) { this.self = (byte) it; }
+
+		/**
+		 * Returns the operator id
+		 * @return	self	The operator id
+		 */
+		public byte get() { return self; }
+
+		/**
+		 * Returns the Operator whos .get() method returns the value 'it'
+		 * @param	it	The id of the wanted Operator
+		 * @return		The wanted Operator
+		 * @throws	IllegalArgumentException	Thrown for invalid operator id
+		 */
+		public static Operator from(byte it) throws IllegalArgumentException {
+			for (Operator item : Operator.values()) {
+				if (item.self == it) { return item; }
+			}
+			throw new IllegalArgumentException("Invalid query operator: "+ it);
+		}
+	}
+
+	/**
+	 * A single predicate of a query. Which of the fields are used depends on the operator
+	 */
+	public static class Predicate {
+		public final Operator operator;
+		long from, to;
+		double min, max;
+		byte[] text;
+
+		Predicate(Operator operator) {
+			this.operator = operator;
+		}
+
+		/**
+		 * Reads a predicate from the byte-buffer at the current position of the buffer
+		 * @param	buffer			The byte-buffer from which to read
+		 * @throws	ProtocolError	Thrown in case of an invalid text length
+		 */
+		Predicate(ByteBuffer buffer) throws ProtocolError {
+			this.operator = Operator.from(buffer.get());
+			switch (this.operator) {
+				case IdRange: {
+					this.from = buffer.getInt();
+					this.to = buffer.getInt();
+				} break;
+				case AmountRange: {
+					this.min = buffer.getDouble();
+					this.max = buffer.getDouble();
+				} break;
+				case TimestampRange: {
+					this.from = buffer.getLong();
+					this.to = buffer.getLong();
+				} break;
+				case PurposePrefix:
+				case PurposeContains: {
+					int length = buffer.getInt() * 8;
+					if (length < 0 || length > buffer.remaining()) {
+						throw new ProtocolError(MessageType.InvalidFieldLength);
+					}
+					byte[] padded = new byte[length];
+					buffer.get(padded);
+					while (length > 0 && padded[length - 1] == 0) { length--; }
+					this.text = new byte[length];
+					System.arraycopy(padded, 0, this.text, 0, length);
+				} break;
+			}
+		}
+
+		/**
+		 * Returns whether this predicate only depends on the purpose
+		 * @return	true for PurposePrefix and PurposeContains
+		 */
+		public boolean isPurpose() {
+			return this.operator == Operator.PurposePrefix || this.operator == Operator.PurposeContains;
+		}
+
+		/**
+		 * Tests the predicate against the fields of a single booking.
+		 * The purpose is passed as a slice of a (possibly shared) byte array
+		 * @return	true if the fields match this predicate
+		 */
+		boolean matches(int id, double amount, long timestamp, byte[] purpose, int offset, int length) {
+			switch (this.operator) {
+				case IdRange: return this.from <= id && id <= this.to;
+				case AmountRange: return this.min <= amount && amount <= this.max;
+				case TimestampRange: return this.from <= timestamp && timestamp <= this.to;
+				case PurposePrefix: return Query.indexOf(purpose, offset, Math.min(length, this.text.length), this.text) == 0;
+				case PurposeContains: return Query.indexOf(purpose, offset, length, this.text) >= 0;
+			}
+			return false;
+		}
+
+		int size() {
+			switch (this.operator) {
+				case IdRange: return 1 + 4 + 4;
+				case AmountRange: return 1 + 8 + 8;
+				case TimestampRange: return 1 + 8 + 8;
+				default: return 1 + 4 + ((this.text.length + 7) / 8 * 8);
+			}
+		}
+
+		void write(ByteBuffer buffer) {
+			buffer.put(this.operator.get());
+			switch (this.operator) {
+				case IdRange: {
+					buffer.putInt((int) this.from);
+					buffer.putInt((int) this.to);
+				} break;
+				case AmountRange: {
+					buffer.putDouble(this.min);
+					buffer.putDouble(this.max);
+				} break;
+				case TimestampRange: {
+					buffer.putLong(this.from);
+					buffer.putLong(this.to);
+				} break;
+				case PurposePrefix:
+				case PurposeContains: {
+					int padded = (this.text.length + 7) / 8 * 8;
+					buffer.putInt(padded / 8);
+					buffer.put(this.text);
+					for (int i = this.text.length; i < padded; i++) { buffer.put((byte) 0); }
+				} break;
+			}
+		}
+
+		@Override
+		public String toString() {
+			switch (this.operator) {
+				case AmountRange: return this.operator.name() +"["+ this.min +", "+ this.max +"]";
+				case PurposePrefix:
+				case PurposeContains: return this.operator.name() +"(\""+ new String(this.text, Message.charset) +"\")";
+				default: return this.operator.name() +"["+ this.from +", "+ this.to +"]";
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset of 'needle' relative to 'offset' within haystack[offset, offset + length), or -1
+	 */
+	private static int indexOf(byte[] haystack, int offset, int length, byte[] needle) {
+		outer: for (int i = 0, last = length - needle.length; i <= last; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (haystack[offset + i + j] != needle[j]) { continue outer; }
+			}
+			return i;
+		}
+		return -1;
+	}
+}
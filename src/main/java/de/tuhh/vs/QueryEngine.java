@@ -0,0 +1,305 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the ledger that answers Queries without touching the database.
+ * The bookings are stored column-wise: ids, amounts, timestamps and purpose ids in primitive arrays.
+ * The purposes themselves are interned in a PurposeDictionary, so each distinct purpose is stored only once.
+ * Deleting a row moves the last row into its place, so the columns never have holes.
+ * Scans are split into chunks that are evaluated in parallel on a ForkJoinPool.
+ * The engine must be kept in sync with the database by calling insert(), update() and delete()
+ * after each successful write.
+ */
+public class QueryEngine {
+
+	/** rows per fork/join leaf task */
+	private static final int chunkSize = 8192;
+
+	private final ForkJoinPool pool;
+	private final PurposeDictionary purposes;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<Integer, Integer> rows = new HashMap<Integer, Integer>(); // id ==> row
+
+	private int size = 0;
+	private int[] ids = new int[64];
+	private double[] amounts = new double[64];
+	private long[] timestamps = new long[64];
+	private int[] purposeIds = new int[64];
+
+	/**
+	 * QueryEngine Constructor
+	 * Creates an empty engine with its own dictionary that scans on the common ForkJoinPool
+	 */
+	public QueryEngine() {
+		this(new PurposeDictionary(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * QueryEngine Constructor
+	 * Creates an empty engine that scans on 'pool'
+	 * @param	purposes	The dictionary to intern the purposes in, which must not be modified by anyone else
+	 * @param	pool		The pool to run parallel scans on
+	 */
+	public QueryEngine(PurposeDictionary purposes, ForkJoinPool pool) {
+		this.purposes = purposes;
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the number of bookings in the engine
+	 * @return	The number of rows
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.size;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a booking to the engine, or replaces the row with the same id
+	 * @param	booking	The booking as it was stored in the database (with its final id)
+	 */
+	public void insert(Booking booking) {
+		this.lock.writeLock().lock();
+		try {
+			int purposeId = this.purposes.acquire(booking.getPurposeBytes());
+			Integer row = this.rows.get(booking.getKey());
+			if (row == null) {
+				row = this.size++;
+				this.ensureCapacity(this.size);
+				this.rows.put(booking.getKey(), row);
+			} else {
+				this.purposes.release(this.purposeIds[row]);
+			}
+			this.ids[row] = booking.getKey();
+			this.amounts[row] = booking.getAmount();
+			this.timestamps[row] = booking.getTimestamp();
+			this.purposeIds[row] = purposeId;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the row of the booking with the same id
+	 * @param	booking	The new version of the booking
+	 */
+	public void update(Booking booking) {
+		this.insert(booking);
+	}
+
+	/**
+	 * Removes the booking with the given id, if present
+	 * @param	id	The id of the booking to remove
+	 */
+	public void delete(int id) {
+		this.lock.writeLock().lock();
+		try {
+			Integer row = this.rows.remove(id);
+			if (row == null) { return; }
+			this.purposes.release(this.purposeIds[row]);
+			int last = --this.size;
+			if (row != last) {
+				this.ids[row] = this.ids[last];
+				this.amounts[row] = this.amounts[last];
+				this.timestamps[row] = this.timestamps[last];
+				this.purposeIds[row] = this.purposeIds[last];
+				this.rows.put(this.ids[row], row);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Atomically replaces the whole content of the engine, e.g. with a snapshot
+	 * @param	bookings	The new bookings
+	 */
+	public void replace(Iterable<Booking> bookings) {
+		this.lock.writeLock().lock();
+		try {
+			for (int row = 0; row < this.size; row++) { this.purposes.release(this.purposeIds[row]); }
+			this.rows.clear();
+			this.size = 0;
+			for (Booking booking : bookings) { this.insert(booking); }
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Evaluates the query over all rows in parallel and encodes the matching bookings
+	 * in the format of a ResolveGetAll body
+	 * @param	query	The query to evaluate
+	 * @return			A buffer whose backing array exactly contains the matching bookings
+	 */
+	public ByteBuffer query(Query query) {
+		this.lock.readLock().lock();
+		try {
+			int[] matches = this.scan(query);
+
+			int length = 0;
+			for (int row : matches) { length += 4 + 4 + this.purposes.get(this.purposeIds[row]).length + 8 + 8; }
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.order(Message.byteOrder);
+			for (int row : matches) {
+				byte[] purpose = this.purposes.get(this.purposeIds[row]);
+				buffer.putInt(this.ids[row]);
+				buffer.putInt(purpose.length / 8);
+				buffer.put(purpose);
+				buffer.putDouble(this.amounts[row]);
+				buffer.putLong(this.timestamps[row]);
+			}
+			return buffer;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Evaluates the query and encodes the matching bookings in the format of a ResolveQueryEncoded body:
+	 * 	int lastId, int count, count * (int purposeId, int length/8, byte[length] purpose),
+	 * 	followed by the bookings as (int id, int purposeId, double amount, long timestamp)
+	 * The dictionary delta contains every purpose with knownId < purposeId <= lastId,
+	 * so a client that remembers all received entries can pass lastId as knownId to its next request.
+	 * @param	query	The query to evaluate
+	 * @param	knownId	The lastId of the last dictionary delta the client received, or 0
+	 * @return			A buffer whose backing array exactly contains the encoded response
+	 */
+	public ByteBuffer queryEncoded(Query query, int knownId) {
+		this.lock.readLock().lock();
+		try {
+			int[] matches = this.scan(query);
+			// no purposes are acquired or released while the read lock is held
+			int lastId = this.purposes.lastId();
+			List<Integer> delta = this.purposes.ids(knownId, lastId);
+
+			int length = 4 + 4 + matches.length * (4 + 4 + 8 + 8);
+			for (int id : delta) { length += 4 + 4 + this.purposes.get(id).length; }
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.order(Message.byteOrder);
+			buffer.putInt(lastId);
+			buffer.putInt(delta.size());
+			for (int id : delta) {
+				byte[] purpose = this.purposes.get(id);
+				buffer.putInt(id);
+				buffer.putInt(purpose.length / 8);
+				buffer.put(purpose);
+			}
+			for (int row : matches) {
+				buffer.putInt(this.ids[row]);
+				buffer.putInt(this.purposeIds[row]);
+				buffer.putDouble(this.amounts[row]);
+				buffer.putLong(this.timestamps[row]);
+			}
+			return buffer;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the indices of all matching rows in ascending order. Must be called with the read lock held.
+	 * The purpose predicates are evaluated only once per distinct purpose, the others once per row.
+	 * The matching purpose ids are marked in a bitset relative to the lowest of them, because ids are never reused
+	 * and an array up to lastId() would grow with every purpose ever interned instead of with those still present
+	 */
+	private int[] scan(Query query) {
+		List<Query.Predicate> predicates = new ArrayList<Query.Predicate>();
+		List<Query.Predicate> purposePredicates = new ArrayList<Query.Predicate>();
+		for (Query.Predicate it : query.predicates()) {
+			(it.isPurpose() ? purposePredicates : predicates).add(it);
+		}
+		BitSet purposeMatches = null;
+		int purposeOffset = 0;
+		if (!purposePredicates.isEmpty()) {
+			List<Integer> matching = new ArrayList<Integer>();
+			purposeOffset = Integer.MAX_VALUE;
+			entries: for (int id : this.purposes.ids(0, this.purposes.lastId())) {
+				byte[] purpose = this.purposes.get(id);
+				for (Query.Predicate it : purposePredicates) {
+					if (!it.matches(0, 0, 0, purpose, 0, purpose.length)) { continue entries; }
+				}
+				matching.add(id);
+				purposeOffset = Math.min(purposeOffset, id);
+			}
+			if (matching.isEmpty()) { return new int[0]; }
+			purposeMatches = new BitSet();
+			for (int id : matching) { purposeMatches.set(id - purposeOffset); }
+		}
+		Scan scan = new Scan(predicates.toArray(new Query.Predicate[0]), purposeMatches, purposeOffset, 0, this.size);
+		return this.size <= chunkSize ? scan.compute() : this.pool.invoke(scan);
+	}
+
+	/**
+	 * Scans the rows [from, to) and returns the indices of the matching rows in ascending order.
+	 * Only ever runs while the caller of scan() holds the read lock
+	 */
+	private class Scan extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final Query.Predicate[] predicates;
+		private final BitSet purposeMatches; // by purpose id - purposeOffset, or null
+		private final int purposeOffset;
+		private final int from, to;
+
+		Scan(Query.Predicate[] predicates, BitSet purposeMatches, int purposeOffset, int from, int to) {
+			this.predicates = predicates;
+			this.purposeMatches = purposeMatches;
+			this.purposeOffset = purposeOffset;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (this.to - this.from > chunkSize) {
+				int middle = (this.from + this.to) >>> 1;
+				Scan right = new Scan(this.predicates, this.purposeMatches, this.purposeOffset, middle, this.to);
+				right.fork();
+				int[] left = new Scan(this.predicates, this.purposeMatches, this.purposeOffset, this.from, middle).compute();
+				int[] rest = right.join();
+				int[] all = Arrays.copyOf(left, left.length + rest.length);
+				System.arraycopy(rest, 0, all, left.length, rest.length);
+				return all;
+			}
+			int[] matches = new int[this.to - this.from];
+			int count = 0;
+			rows: for (int row = this.from; row < this.to; row++) {
+				if (this.purposeMatches != null) {
+					int index = QueryEngine.this.purposeIds[row] - this.purposeOffset;
+					if (index < 0 || !this.purposeMatches.get(index)) { continue; }
+				}
+				for (Query.Predicate predicate : this.predicates) {
+					if (!predicate.matches(
+						QueryEngine.this.ids[row], QueryEngine.this.amounts[row], QueryEngine.this.timestamps[row], null, 0, 0
+					)) { continue rows; }
+				}
+				matches[count++] = row;
+			}
+			return count == matches.length ? matches : Arrays.copyOf(matches, count);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= this.ids.length) { return; }
+		int length = Math.max(this.ids.length * 2, capacity);
+		this.ids = Arrays.copyOf(this.ids, length);
+		this.amounts = Arrays.copyOf(this.amounts, length);
+		this.timestamps = Arrays.copyOf(this.timestamps, length);
+		this.purposeIds = Arrays.copyOf(this.purposeIds, length);
+	}
+}
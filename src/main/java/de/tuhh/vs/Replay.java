@@ -0,0 +1,254 @@
+package de.tuhh.vs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Plays a capture file recorded with Server.Config.captureFile back against a server.
+ * Every recorded connection gets its own socket, which sends the recorded frames unchanged (including their message ids)
+ * at the recorded times, scaled by 'speed', or as fast as possible.
+ * The responses are compared to the recorded response types, lengths and checksums,
+ * so replaying against a copy of the database the capture started with should show no divergences.
+ * The order within a connection is always kept, but faster than recorded the requests of different connections
+ * may interleave differently, which shows as divergences of reads that raced with writes.
+ */
+public class Replay {
+
+	/** milliseconds to wait for outstanding responses after the last request of a connection was sent */
+	private static final long drainTimeout = 5000;
+	private static final int printedDivergences = 20;
+
+	/**
+	 * The results of a replay
+	 */
+	public static class Report {
+		/** latencies in nanoseconds by request type */
+		public final Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();
+		/** number of responses that differ from the recorded ones, or were not recorded */
+		public int divergences = 0;
+		/** number of recorded responses that were not received */
+		public int missing = 0;
+		/** descriptions of the first divergences */
+		public final List<String> details = new ArrayList<String>();
+
+		synchronized void latency(String type, long nanos) {
+			List<Long> list = this.latencies.get(type);
+			if (list == null) { this.latencies.put(type, list = new ArrayList<Long>()); }
+			list.add(nanos);
+		}
+
+		synchronized void diverged(String detail) {
+			if (this.divergences++ < printedDivergences) { this.details.add(detail); }
+		}
+
+		@Override
+		public synchronized String toString() {
+			String print = "Replay latencies (ms):\n\ttype                    count      p50      p90      p99    p99.9      max\n";
+			List<Long> all = new ArrayList<Long>();
+			for (Map.Entry<String, List<Long>> entry : this.latencies.entrySet()) {
+				print += Report.row(entry.getKey(), entry.getValue());
+				all.addAll(entry.getValue());
+			}
+			print += Report.row("all", all);
+			print += "Replay divergences: "+ this.divergences +", missing responses: "+ this.missing +"\n";
+			for (String detail : this.details) { print += "\t"+ detail +"\n"; }
+			return print;
+		}
+
+		private static String row(String type, List<Long> latencies) {
+			long[] sorted = new long[latencies.size()];
+			for (int i = 0; i < sorted.length; i++) { sorted[i] = latencies.get(i); }
+			Arrays.sort(sorted);
+			return String.format("\t%-20s %8d %8.3f %8.3f %8.3f %8.3f %8.3f\n", type, sorted.length,
+				Report.percentile(sorted, 0.5), Report.percentile(sorted, 0.9), Report.percentile(sorted, 0.99),
+				Report.percentile(sorted, 0.999), Report.percentile(sorted, 1)
+			);
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			if (sorted.length == 0) { return 0; }
+			return sorted[(int) Math.ceil(p * sorted.length) - (p > 0 ? 1 : 0)] / 1e6;
+		}
+	}
+
+	/**
+	 * The recorded traffic of one connection and the state of its replay
+	 */
+	private static class Connection {
+		final long id;
+		final List<Capture.Record> requests = new ArrayList<Capture.Record>();
+		final Map<Short, ArrayDeque<Capture.Record>> expected = new HashMap<Short, ArrayDeque<Capture.Record>>();
+		final Map<Short, ArrayDeque<long[]>> sent = new HashMap<Short, ArrayDeque<long[]>>(); // { nanoTime, type } by messageId
+		int outstanding = 0;
+
+		Connection(long id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Replays a capture against a server on the local host
+	 * @param	records	The records read with Capture.read()
+	 * @param	port	The port of the server
+	 * @param	speed	Factor to scale the recorded pace with, or Double.POSITIVE_INFINITY to send as fast as possible
+	 * @return			The latencies and divergences
+	 * @throws	Exception	Thrown if a connection can't be opened
+	 */
+	public static Report replay(List<Capture.Record> records, int port, double speed) throws Exception {
+		Map<Long, Connection> connections = new LinkedHashMap<Long, Connection>();
+		long first = -1;
+		for (Capture.Record record : records) {
+			Connection connection = connections.get(record.connection);
+			if (connection == null) { connections.put(record.connection, connection = new Connection(record.connection)); }
+			if (record.kind == Capture.request) {
+				if (first < 0) { first = record.time; }
+				connection.requests.add(record);
+			} else {
+				ArrayDeque<Capture.Record> queue = connection.expected.get(record.messageId);
+				if (queue == null) { connection.expected.put(record.messageId, queue = new ArrayDeque<Capture.Record>()); }
+				queue.add(record);
+			}
+		}
+
+		Report report = new Report();
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (Connection connection : connections.values()) {
+			if (connection.requests.isEmpty()) { continue; }
+			Socket socket = new Socket(InetAddress.getLocalHost(), port);
+			Thread reader = new Thread(() -> Replay.receive(connection, socket, report), "Replay reader "+ connection.id);
+			final long origin = first;
+			Thread sender = new Thread(() -> Replay.send(connection, socket, start, origin, speed), "Replay sender "+ connection.id);
+			reader.start();
+			sender.start();
+			threads.add(reader);
+			threads.add(sender);
+		}
+		for (Thread thread : threads) { thread.join(); }
+
+		for (Connection connection : connections.values()) {
+			for (ArrayDeque<Capture.Record> queue : connection.expected.values()) { report.missing += queue.size(); }
+		}
+		return report;
+	}
+
+	private static void send(Connection connection, Socket socket, long start, long origin, double speed) {
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			for (Capture.Record request : connection.requests) {
+				long due = start + (long) ((request.time - origin) / speed);
+				for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+					LockSupport.parkNanos(wait);
+				}
+				synchronized (connection) {
+					ArrayDeque<long[]> queue = connection.sent.get(request.messageId);
+					if (queue == null) { connection.sent.put(request.messageId, queue = new ArrayDeque<long[]>()); }
+					queue.add(new long[] { System.nanoTime(), request.type });
+					connection.outstanding++;
+				}
+				out.write(request.frame);
+			}
+			out.flush();
+			long until = System.currentTimeMillis() + drainTimeout;
+			synchronized (connection) {
+				for (long left = drainTimeout; connection.outstanding > 0 && left > 0; left = until - System.currentTimeMillis()) {
+					connection.wait(left);
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Replay connection "+ connection.id +" failed to send: "+ e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	private static void receive(Connection connection, Socket socket, Report report) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			while (true) {
+				Message response = Message.read(in);
+				long received = System.nanoTime();
+				long[] sent;
+				Capture.Record expected;
+				synchronized (connection) {
+					ArrayDeque<long[]> queue = connection.sent.get(response.id);
+					sent = queue != null ? queue.poll() : null;
+					ArrayDeque<Capture.Record> recorded = connection.expected.get(response.id);
+					expected = recorded != null ? recorded.poll() : null;
+					if (sent != null) { connection.outstanding--; }
+					connection.notifyAll();
+				}
+				if (sent != null) {
+					report.latency(Replay.typeName((byte) sent[1]), received - sent[0]);
+				}
+				int length = response.body != null ? response.body.limit() : 0;
+				String actual = response.type +" ("+ length +" bytes)";
+				if (expected == null) {
+					report.diverged("connection "+ connection.id +", message "+ response.id +": unexpected "+ actual);
+				} else if (expected.type != response.type.get() || expected.length != length || expected.crc != Capture.crc(response.body)) {
+					report.diverged("connection "+ connection.id +", message "+ response.id +": expected "
+						+ Replay.typeName(expected.type) +" ("+ expected.length +" bytes), got "+ actual);
+				}
+			}
+		} catch (EOFException | SocketException e) {
+		} catch (IOException | Message.ProtocolError e) {
+			System.out.println("Replay connection "+ connection.id +" failed to receive: "+ e.getMessage());
+		}
+	}
+
+	private static String typeName(byte type) {
+		try {
+			return MessageType.from(type).name();
+		} catch (IllegalArgumentException e) {
+			return String.format("0x%02X", type);
+		}
+	}
+
+	/**
+	 * Replays a capture file and prints the report
+	 * @param	args	The capture file, optionally followed by the port (default 8080) and either
+	 * 					'--speed <factor>' to scale the recorded pace (default 1) or '--max' to send as fast as possible
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: Replay <captureFile> [port] [--speed <factor> | --max]");
+			return;
+		}
+		int port = 8080;
+		double speed = 1;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--speed") && i + 1 < args.length) {
+				speed = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--max")) {
+				speed = Double.POSITIVE_INFINITY;
+			} else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
+		try {
+			List<Capture.Record> records = Capture.read(args[0]);
+			System.out.println("Replay "+ records.size() +" records from "+ args[0] +" at "+ (speed == Double.POSITIVE_INFINITY ? "maximum speed" : speed +"x speed"));
+			System.out.println(Replay.replay(records, port, speed));
+		} catch (Throwable e) {
+			System.out.println("Replay failed: "+ e.getClass() +", "+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package de.tuhh.vs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Keeps an in-memory replica of a leaders ledger up to date by following its ReplicationLeader.
+ * The replica can be served with Handler.getReplicaHandler(follower.engine).
+ * If the connection is lost the follower reconnects and asks for the entries after the last one it applied,
+ * so it catches up either from the retained log tail or from a new snapshot.
+ * Every snapshot and entry is applied to the engine through the 'apply' consumer, e.g. CoalescingHandler.write,
+ * so handlers that cache or coalesce reads of the replica learn about the change.
+ */
+public class ReplicationFollower implements AutoCloseable {
+
+	/** the replica */
+	public final QueryEngine engine;
+	private final String host;
+	private final int port;
+	private final Consumer<Runnable> apply;
+	private final Thread thread;
+	private volatile Socket socket;
+	private volatile boolean closed = false;
+
+	private long epoch = 0;
+	private long seq = 0; // sequence number of the last applied entry
+	private int snapshots = 0; // number of snapshots loaded
+
+	/**
+	 * ReplicationFollower Constructor
+	 * Starts following the leader in the background
+	 * @param	host	The host of the leader
+	 * @param	port	The replication port of the leader
+	 * @param	engine	The (empty) engine to keep the replica in
+	 */
+	public ReplicationFollower(String host, int port, QueryEngine engine) {
+		this(host, port, engine, Runnable::run);
+	}
+
+	/**
+	 * ReplicationFollower Constructor
+	 * Same as ReplicationFollower(host, port, engine), but applies the writes through 'apply'
+	 * @param	host	The host of the leader
+	 * @param	port	The replication port of the leader
+	 * @param	engine	The (empty) engine to keep the replica in
+	 * @param	apply	Runs the passed modification of the engine, e.g. CoalescingHandler::write
+	 */
+	public ReplicationFollower(String host, int port, QueryEngine engine, Consumer<Runnable> apply) {
+		this.host = host;
+		this.port = port;
+		this.engine = engine;
+		this.apply = apply;
+		this.thread = new Thread(() -> {
+			while (!this.closed) {
+				try (
+					Socket socket = new Socket(this.host, this.port);
+				) {
+					this.socket = socket;
+					this.follow(socket);
+				} catch (Throwable e) {
+					if (!this.closed) {
+						System.out.println("Follower lost leader "+ this.host +":"+ this.port +": "+ e.getMessage());
+					}
+				}
+				try {
+					if (!this.closed) { Thread.sleep(1000); }
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}, "ReplicationFollower");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private void follow(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+		ByteBuffer request = ByteBuffer.allocate(8 + 8);
+		request.order(Message.byteOrder);
+		synchronized (this) {
+			request.putLong(this.epoch);
+			request.putLong(this.seq);
+		}
+		out.write(new Message(MessageType.CallReplicate, request).frame((short) 1));
+		out.flush();
+
+		while (!this.closed) {
+			Message message = Message.read(in);
+			switch (message.type) {
+				case ResolveReplicateSnapshot: {
+					long epoch = message.body.getLong();
+					long seq = message.body.getLong();
+					List<Booking> bookings = new ArrayList<Booking>();
+					while (message.body.position() < message.body.limit()) {
+						bookings.add(new Booking(message.body));
+					}
+					this.apply.accept(() -> this.engine.replace(bookings));
+					System.out.println("Follower loaded snapshot at "+ seq +" with "+ bookings.size() +" bookings");
+					synchronized (this) {
+						this.epoch = epoch;
+						this.seq = seq;
+						this.snapshots++;
+						this.notifyAll();
+					}
+				} break;
+				case ResolveReplicateEntry: {
+					long seq = message.body.getLong();
+					if (seq != this.seq() + 1) {
+						throw new IOException("Missing log entries before "+ seq);
+					}
+					MessageType op = MessageType.from(message.body.get());
+					Booking booking = new Booking(message.body);
+					switch (op) {
+						case CallInsert:
+						case CallEdit: {
+							this.apply.accept(() -> this.engine.insert(booking));
+						} break;
+						case CallDelete: {
+							this.apply.accept(() -> this.engine.delete(booking.getKey()));
+						} break;
+						default: {
+							throw new IOException("Invalid log entry type "+ op);
+						}
+					}
+					synchronized (this) {
+						this.seq = seq;
+						this.notifyAll();
+					}
+				} break;
+				default: {
+					throw new IOException("Recived packet of unexpedted type "+ message.type);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last applied entry
+	 * @return	The sequence number
+	 */
+	public synchronized long seq() {
+		return this.seq;
+	}
+
+	/**
+	 * Returns the number of snapshots loaded, i.e. how often the follower could not catch up from the log tail
+	 * @return	The number of snapshots
+	 */
+	public synchronized int snapshots() {
+		return this.snapshots;
+	}
+
+	/**
+	 * Blocks until the entry with sequence number 'seq' was applied
+	 * @param	seq		The sequence number to wait for
+	 * @param	timeout	Maximum time to wait in milliseconds
+	 * @return			Whether the entry was applied
+	 * @throws	InterruptedException	Thrown if the waiting thread is interrupted
+	 */
+	public synchronized boolean await(long seq, long timeout) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeout;
+		for (long left = timeout; this.seq < seq && left > 0; left = until - System.currentTimeMillis()) {
+			this.wait(left);
+		}
+		return this.seq >= seq;
+	}
+
+	/**
+	 * Stops following the leader
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.thread.interrupt();
+		Socket socket = this.socket;
+		if (socket != null) try {
+			socket.close();
+		} catch (IOException e) { }
+	}
+}
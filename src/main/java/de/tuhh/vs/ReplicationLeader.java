@@ -0,0 +1,166 @@
+package de.tuhh.vs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Serves the replication log of a leader to followers on a separate TCP port, using the normal Message framing.
+ * A follower sends a single CallReplicate with the epoch and sequence number it has applied last.
+ * If the leader still retains the following entries it continues from there,
+ * otherwise it first sends a ResolveReplicateSnapshot of the whole ledger. Afterwards every committed write
+ * is streamed as ResolveReplicateEntry, in order, all with the message id of the CallReplicate.
+ * Each follower is served by its own thread, so a slow follower only delays itself.
+ */
+public class ReplicationLeader implements AutoCloseable {
+
+	private final ReplicationLog log;
+	private final BiConsumer<Message, Consumer<Message>> handler;
+	private final ServerSocket socket;
+	private final Vector<Socket> followers = new Vector<Socket>();
+	private volatile boolean closed = false;
+
+	/**
+	 * ReplicationLeader Constructor
+	 * Starts listening for followers on 'port'
+	 * @param	port	The replication port, or 0 for one assigned by the system (see getPort())
+	 * @param	log		The log the handler appends all writes to
+	 * @param	handler	The handler of the leader (as returned by Handler.getHandler(dbDirectory, log)), used to take snapshots
+	 * @throws	IOException	Thrown if the port can't be opened
+	 */
+	public ReplicationLeader(int port, ReplicationLog log, BiConsumer<Message, Consumer<Message>> handler) throws IOException {
+		this.log = log;
+		this.handler = handler;
+		this.socket = new ServerSocket(port);
+		Thread thread = new Thread(() -> {
+			try {
+				do {
+					Socket follower = this.socket.accept();
+					this.followers.add(follower);
+					new Thread(() -> {
+						System.out.println("Leader follower connected "+ follower.getRemoteSocketAddress());
+						try {
+							this.serve(follower);
+						} catch (EOFException | SocketException | InterruptedException e) {
+						} catch (Throwable e) {
+							e.printStackTrace();
+						} finally {
+							System.out.println("Leader follower disconnected "+ follower.getRemoteSocketAddress());
+							this.followers.remove(follower);
+							try { follower.close(); } catch (IOException e) { }
+						}
+					}, "ReplicationLeader "+ follower.getRemoteSocketAddress()).start();
+				} while (!this.closed);
+			} catch (IOException e) {
+				if (!this.closed) { e.printStackTrace(); }
+			}
+		}, "ReplicationLeader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the replication port, i.e. the one assigned by the system if the leader was created with port 0
+	 * @return	The local port
+	 */
+	public int getPort() {
+		return this.socket.getLocalPort();
+	}
+
+	private void serve(Socket follower) throws IOException, InterruptedException {
+		DataInputStream in = new DataInputStream(follower.getInputStream());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream()));
+
+		Message request = Message.read(in);
+		if (request.type != MessageType.CallReplicate || request.body.limit() != 16) {
+			out.write(new Message(MessageType.InvalidPacketType, null).frame(request.id));
+			out.flush();
+			return;
+		}
+		long epoch = request.body.getLong();
+		long seq = request.body.getLong();
+
+		long next;
+		if (epoch == this.log.epoch && seq == this.log.lastSeq()) {
+			next = seq + 1;
+		} else if (epoch == this.log.epoch && seq < this.log.lastSeq() && this.log.get(seq + 1) != null) {
+			next = seq + 1;
+			System.out.println("Leader replaying log from "+ next +" to "+ follower.getRemoteSocketAddress());
+		} else {
+			next = this.sendSnapshot(out, request.id);
+		}
+
+		while (!this.closed) {
+			if (!this.log.await(next, 1000)) { continue; }
+			byte[] entry = this.log.get(next);
+			if (entry == null) { // fell behind more than the log retains
+				next = this.sendSnapshot(out, request.id);
+				continue;
+			}
+			out.write(new Message(MessageType.ResolveReplicateEntry, ByteBuffer.wrap(entry)).frame(request.id));
+			next++;
+			if (this.log.lastSeq() < next) { out.flush(); }
+		}
+	}
+
+	/**
+	 * Sends the whole ledger, as of the current end of the log, to the follower
+	 * @return	The sequence number of the first entry that is not contained in the snapshot
+	 */
+	private long sendSnapshot(DataOutputStream out, short messageId) throws IOException {
+		long seq;
+		Message[] state = new Message[1];
+		synchronized (this.log) { // no writes can be committed meanwhile
+			seq = this.log.lastSeq();
+			this.handler.accept(new Message(MessageType.CallGetAll, ByteBuffer.allocate(0)), message -> state[0] = message);
+		}
+		if (state[0] == null || state[0].type != MessageType.ResolveGetAll) {
+			throw new IOException("Failed to take snapshot");
+		}
+		ByteBuffer bookings = state[0].body.duplicate();
+		bookings.rewind();
+		ByteBuffer body = ByteBuffer.allocate(8 + 8 + bookings.limit());
+		body.order(Message.byteOrder);
+		body.putLong(this.log.epoch);
+		body.putLong(seq);
+		body.put(bookings);
+		System.out.println("Leader sending snapshot at "+ seq +" ("+ body.limit() +" bytes)");
+		out.write(new Message(MessageType.ResolveReplicateSnapshot, body).frame(messageId));
+		out.flush();
+		return seq + 1;
+	}
+
+	/**
+	 * Stops accepting followers and disconnects all connected ones
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		try {
+			this.socket.close();
+		} catch (IOException e) { }
+		this.disconnect();
+	}
+
+	/**
+	 * Disconnects all connected followers, which then reconnect and continue from the last entry they applied
+	 */
+	void disconnect() {
+		for (Socket follower : this.followers.toArray(new Socket[0])) {
+			try {
+				follower.close();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Ordered log of the committed writes of a leader, of which the last 'capacity' entries are retained.
+ * Every entry gets a sequence number, starting at 1, and is stored already encoded as ResolveReplicateEntry body.
+ * Writers must append while holding the logs monitor for the whole check-and-write, so that the order
+ * of the entries is the order in which the writes were applied and snapshots taken while holding the monitor are consistent.
+ * The epoch identifies this log: sequence numbers of a log with a different epoch are meaningless.
+ */
+public class ReplicationLog {
+
+	public final long epoch = System.currentTimeMillis();
+	private final byte[][] entries;
+	private long lastSeq = 0;
+
+	/**
+	 * ReplicationLog Constructor
+	 * @param	capacity	The number of entries to retain for followers to catch up from
+	 */
+	public ReplicationLog(int capacity) {
+		this.entries = new byte[capacity][];
+	}
+
+	/**
+	 * Appends a committed write to the log and wakes up all waiting followers
+	 * @param	op		CallInsert, CallDelete or CallEdit
+	 * @param	booking	The booking as it is now stored (for CallDelete the deleted one)
+	 * @return			The sequence number of the new entry
+	 */
+	public synchronized long append(MessageType op, Booking booking) {
+		long seq = ++this.lastSeq;
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 1 + booking.size());
+		buffer.order(Message.byteOrder);
+		buffer.putLong(seq);
+		buffer.put(op.get());
+		booking.write(buffer);
+		this.entries[(int) (seq % this.entries.length)] = buffer.array();
+		this.notifyAll();
+		return seq;
+	}
+
+	/**
+	 * Returns the sequence number of the newest entry
+	 * @return	The last sequence number, 0 if nothing was appended yet
+	 */
+	public synchronized long lastSeq() {
+		return this.lastSeq;
+	}
+
+	/**
+	 * Returns the encoded entry with sequence number 'seq', if it is still retained
+	 * @param	seq	The sequence number
+	 * @return		The ResolveReplicateEntry body, or null if 'seq' was already dropped or not appended yet
+	 */
+	public synchronized byte[] get(long seq) {
+		if (seq < 1 || seq > this.lastSeq || seq <= this.lastSeq - this.entries.length) { return null; }
+		return this.entries[(int) (seq % this.entries.length)];
+	}
+
+	/**
+	 * Blocks until an entry with sequence number 'seq' was appended
+	 * @param	seq		The sequence number to wait for
+	 * @param	timeout	Maximum time to wait in milliseconds
+	 * @return			Whether the entry was appended
+	 * @throws	InterruptedException	Thrown if the waiting thread is interrupted
+	 */
+	public synchronized boolean await(long seq, long timeout) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeout;
+		for (long left = timeout; this.lastSeq < seq && left > 0; left = until - System.currentTimeMillis()) {
+			this.wait(left);
+		}
+		return this.lastSeq >= seq;
+	}
+}
@@ -0,0 +1,172 @@
+package de.tuhh.vs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the lifecycle of single requests:
+ * FrameRead -> Handle (containing Decode and Storage) -> ResponseWrite.
+ * All events carry the connection and message id of their request, so the events of one request can be correlated.
+ * The events are disabled by default and are only recorded if enabled through the JFR settings,
+ * e.g. with the bundled profile: java -XX:StartFlightRecording=settings=default,settings=requests.jfc ...
+ * JFR reads the settings from a file, so requests.jfc has to be extracted from the jar first
+ * (jar xf SocketTeam002Server.jar requests.jfc), or taken from src/main/resources in a checkout.
+ * The static methods return null while their event is disabled, so nothing is allocated then.
+ * jdk.jfr is only part of Java 8 since 8u262, so the server requires 8u262 or later (or any JDK 11+),
+ * and it can't be compiled with 'javac --release 8', whose Java 8 API doesn't contain it.
+ */
+public abstract class RequestEvents {
+
+	@Category({ "SocketTeam002Server", "Requests" })
+	@Enabled(false)
+	@StackTrace(false)
+	static abstract class RequestEvent extends Event {
+		@Label("Connection")
+		@Description("Sequence number of the connection on the server")
+		long connection;
+		@Label("Message Id")
+		short messageId;
+	}
+
+	@Name("de.tuhh.vs.FrameRead")
+	@Label("Frame Read")
+	@Description("Reading the body of a request, from the complete header until the complete body")
+	static class FrameRead extends RequestEvent {
+		@Label("Body Length")
+		@DataAmount
+		long length;
+	}
+
+	@Name("de.tuhh.vs.Decode")
+	@Label("Decode")
+	@Description("Parsing the body of a request into bookings or queries")
+	static class Decode extends RequestEvent { }
+
+	@Name("de.tuhh.vs.Handle")
+	@Label("Handle")
+	@Description("Execution of the handler branch for a request")
+	static class Handle extends RequestEvent {
+		@Label("Type")
+		String type;
+	}
+
+	@Name("de.tuhh.vs.Storage")
+	@Label("Storage")
+	@Description("A call to the database or the in-memory query engine")
+	static class Storage extends RequestEvent {
+		@Label("Operation")
+		String operation;
+	}
+
+	@Name("de.tuhh.vs.ResponseWrite")
+	@Label("Response Write")
+	@Description("Encoding a response and appending it to the outbound queue of the connection")
+	static class ResponseWrite extends RequestEvent {
+		@Label("Type")
+		String type;
+		@Label("Body Length")
+		@DataAmount
+		long length;
+	}
+
+	private static final EventType frameReadType = EventType.getEventType(FrameRead.class);
+	private static final EventType decodeType = EventType.getEventType(Decode.class);
+	private static final EventType handleType = EventType.getEventType(Handle.class);
+	private static final EventType storageType = EventType.getEventType(Storage.class);
+	private static final EventType responseWriteType = EventType.getEventType(ResponseWrite.class);
+
+	/**
+	 * Starts a FrameRead event
+	 * @param	connection	The connection the frame is read from
+	 * @param	messageId	The message id from the header
+	 * @param	length		The body length from the header
+	 * @return				The started event, or null if disabled
+	 */
+	static FrameRead frameRead(long connection, short messageId, long length) {
+		if (!frameReadType.isEnabled()) { return null; }
+		FrameRead event = new FrameRead();
+		event.connection = connection;
+		event.messageId = messageId;
+		event.length = length;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Starts a Decode event
+	 * @param	request	The request whose body is decoded
+	 * @return			The started event, or null if disabled
+	 */
+	static Decode decode(Message request) {
+		if (!decodeType.isEnabled()) { return null; }
+		Decode event = new Decode();
+		event.connection = request.connection;
+		event.messageId = request.id;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Starts a Handle event
+	 * @param	request	The request that is handled
+	 * @return			The started event, or null if disabled
+	 */
+	static Handle handle(Message request) {
+		if (!handleType.isEnabled()) { return null; }
+		Handle event = new Handle();
+		event.connection = request.connection;
+		event.messageId = request.id;
+		event.type = request.type.name();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Starts a Storage event
+	 * @param	request		The request that caused the call
+	 * @param	operation	The name of the called method, must be a constant
+	 * @return				The started event, or null if disabled
+	 */
+	static Storage storage(Message request, String operation) {
+		if (!storageType.isEnabled()) { return null; }
+		Storage event = new Storage();
+		event.connection = request.connection;
+		event.messageId = request.id;
+		event.operation = operation;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Starts a ResponseWrite event
+	 * @param	connection	The connection the response is sent to
+	 * @param	messageId	The message id of the response
+	 * @param	response	The response
+	 * @return				The started event, or null if disabled
+	 */
+	static ResponseWrite responseWrite(long connection, short messageId, Message response) {
+		if (!responseWriteType.isEnabled()) { return null; }
+		ResponseWrite event = new ResponseWrite();
+		event.connection = connection;
+		event.messageId = messageId;
+		event.type = response.type.name();
+		event.length = response.body != null ? response.body.limit() : 0;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends and commits an event started by one of the methods above, if it is not null
+	 * @param	event	The event or null
+	 */
+	static void commit(Event event) {
+		if (event != null) { event.commit(); }
+	}
+}
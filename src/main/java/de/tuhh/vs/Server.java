@@ -10,9 +10,16 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.Vector;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 import de.tuhh.vs.Message.MessageType;
 
@@ -20,62 +27,115 @@ public class Server implements AutoCloseable {
 	
 	private Thread thread;
 	private ServerSocket socket;
+	private volatile int port; // the local port, also after the server socket is closed
 	private final CompletableFuture<Object> done;
-	private final BiConsumer<Message, Consumer<Message>> handler;
+	private final AsyncHandler handler;
 	private final Vector<Socket> clients;
+	private final Config config;
+	private final FairScheduler scheduler;
+	private final AtomicLong connections = new AtomicLong(0); // sequence number of the last accepted connection
+	private final Capture capture; // or null
+	private boolean closed = false; // set by close(), independent of softClose() ending the server thread
+	
+	/**
+	 * Tunable limits of a server. Server(port, handler) uses the default values
+	 */
+	public static class Config {
+		/** bytes queued for a client above which reading from that client pauses */
+		public long highWatermark = 1 << 20;
+		/** bytes queued for a paused client below which reading from it resumes */
+		public long lowWatermark = 256 << 10;
+		/** bytes queued for a client above which it is evicted (a single larger response is still sent) */
+		public long maxQueued = 16 << 20;
+		/** milliseconds a client may stay paused before it is evicted */
+		public long evictAfter = 10000;
+		/** milliseconds to wait for queued responses to be sent when a connection is closed */
+		public long closeTimeout = 1000;
+		/** number of concurrent connections above which new ones are rejected with ErrorOverloaded */
+		public int maxConnections = 1000;
+		/** maximum body length of a request, longer requests are rejected with InvalidBodyLength before allocating the body */
+		public long maxBodyLength = 16 << 20;
+		/** sustained requests per second per connection, requests above that are rejected with ErrorOverloaded */
+		public double rate = 1000;
+		/** number of requests a connection may send at once before 'rate' applies */
+		public double burst = 100;
+		/** number of threads that run the handler for all connections */
+		public int workers = Runtime.getRuntime().availableProcessors();
+		/** number of requests of a connection that may wait for a worker or their response before further ones are rejected with ErrorOverloaded */
+		public int maxPending = 64;
+		/** scheduling weight of a connection, i.e. how many of its requests are run per turn */
+		public ToIntFunction<Socket> weight = client -> 1;
+		/** path of a file to capture all requests and response checksums to (see Capture and Replay), or null */
+		public String captureFile = null;
+		/** number of captured records that may wait to be written before further ones are dropped */
+		public int captureQueued = 1 << 16;
+	}
 	
 	
 	/**
 	 * Constructs a message packet with the passed message-id and response
-	 * and writes it to the passed outputstream
+	 * and appends it to the clients outbound queue, so this never blocks on a slow client.
+	 * The body is read from 0 to its limit without changing its position, so it may be a shared read-only buffer.
 	 * 
-	 * @param	out			The outputstream into which to write the message 
+	 * @param	out			The outbound queue of the client
+	 * @param	connection	The sequence number of the connection, for tracing
 	 * @param	messageId	The id of the message to write
 	 * @param	response	The response-message itself
-	 * @throws	IOException	Thrown if an I/O error occurs(while writing to the outputstream)
+	 * @throws	IOException	Thrown if the connection is closed or the client was evicted
 	 */
-	private void sendResponse(DataOutputStream out, short messageId, Message response) throws IOException {
+	private void sendResponse(OutboundQueue out, long connection, short messageId, Message response) throws IOException {
+		RequestEvents.ResponseWrite event = RequestEvents.responseWrite(connection, messageId, response);
 		int length = response.body != null ? response.body.limit() : 0;
 		System.out.println("Server responding "+ messageId +": "+ response.type +":\n"+
-				(length != 0 ? "\t("+ length +")"+ App.bytesToHex(response.body.array()) : "\t<no body>"));
-		ByteBuffer buffer = ByteBuffer.allocate(length + Message.headerLength);
-		buffer.order(Message.byteOrder);
-		buffer.put((byte) Message.version);
-		buffer.putShort(messageId);
-		buffer.put(response.type.get());
-		buffer.putLong(length);
-		if (response.body != null) {
-			buffer.put(response.body.array());
-		}
-		out.write(buffer.array());
+				(length != 0 ? "\t("+ length +")"+ App.bytesToHex(response.body) : "\t<no body>"));
+		if (this.capture != null) { this.capture.response(connection, messageId, response); } // before the client can see the response and close the server
+		out.offer(response.frame(messageId));
+		RequestEvents.commit(event);
 	}
 	/**
 	 * Constructs a message packet using the passed message-id and message type, but with empty body
-	 * Afterwards it writes it to the passed outputstream
+	 * Afterwards it appends it to the clients outbound queue
 	 * 
-	 * @param	out			The outputstream into which to write the message 
+	 * @param	out			The outbound queue of the client
+	 * @param	connection	The sequence number of the connection, for tracing
 	 * @param	messageId	The id of the message to write
 	 * @param	type		The message type
-	 * @throws	IOException	Thrown if an I/O error occurs(while writing to the outputstream)
+	 * @throws	IOException	Thrown if the connection is closed or the client was evicted
 	 */
-	private void sendResponse(DataOutputStream out, short messageId, MessageType type) throws IOException {
-		sendResponse(out, messageId, new Message(type, null));
+	private void sendResponse(OutboundQueue out, long connection, short messageId, MessageType type) throws IOException {
+		sendResponse(out, connection, messageId, new Message(type, null));
 	}
 	
 	/**
-	 * Handles the communication with a client synchronously
+	 * Reads the requests of a client and passes them to the handler through the clients lane of the FairScheduler,
+	 * one at a time: a request is only passed on once the response to the previous one was sent.
+	 * Requests are rejected with ErrorOverloaded if they exceed the clients rate limit
+	 * or too many are waiting for a worker or for the handler to complete them.
+	 * Responses are sent by the writer thread of the clients OutboundQueue,
+	 * and reading pauses while that queue is above its high watermark
 	 * @param	client		The client that has to be handled
 	 * @throws	IOException	Thrown if an I/O error occurs(while creating the data-input- and data-output-stream)
+	 * @throws	InterruptedException	Thrown if the thread is interrupted while the client is paused
 	 */
-	private void handleClient(Socket client) throws IOException {
+	private void handleClient(Socket client) throws IOException, InterruptedException {
 		try (
 			DataInputStream in = new DataInputStream(client.getInputStream());
-			DataOutputStream out = new DataOutputStream(client.getOutputStream());
+			DataOutputStream stream = new DataOutputStream(client.getOutputStream());
+			OutboundQueue out = new OutboundQueue(client, stream, this.config);
 		) {
+			final long connection = this.connections.incrementAndGet();
+			final AtomicInteger pending = new AtomicInteger(0); // requests waiting in the lane or for their response
+			TokenBucket bucket = new TokenBucket(this.config.rate, this.config.burst);
+			FairScheduler.Lane lane = this.scheduler.lane(this.config.weight.applyAsInt(client), this.config.maxPending);
 			byte version;
 			MessageType type;
 			ByteBuffer body;
 			do {
+				// don't accept new requests while the client doesn't read its responses
+				if (!out.awaitWritable()) {
+					System.out.println("Server client evicted, closing connection");
+					return;
+				}
 				System.out.println("Server start read");
 
 				// read header
@@ -97,7 +157,7 @@ public class Server implements AutoCloseable {
 
 				// check protocol version
 				if (version != Message.version) {
-					sendResponse(out, messageId, MessageType.InvalidProtocolVersion);
+					sendResponse(out, connection, messageId, MessageType.InvalidProtocolVersion);
 					in.skip(Integer.MAX_VALUE);
 					continue;
 				}
@@ -106,43 +166,74 @@ public class Server implements AutoCloseable {
 				try {
 					type = MessageType.from(header.get());
 				} catch (IllegalArgumentException e) {
-					sendResponse(out, messageId, MessageType.InvalidPacketType);
+					sendResponse(out, connection, messageId, MessageType.InvalidPacketType);
 					in.skip(Integer.MAX_VALUE);
 					continue;
 				}
 				
-				// read body of correct length
-				try {
-					int length = (int) header.getLong();
-					body = ByteBuffer.allocate(length);
-					body.order(Message.byteOrder);
-					if (length != in.read(body.array())) {
-						throw new IllegalArgumentException();
-					}
-				} catch (IllegalArgumentException e) {
-					sendResponse(out, messageId, MessageType.InvalidBodyLength);
-					in.skip(Integer.MAX_VALUE);
-					continue;
+				// check body length before allocating anything, the rest of the stream can't be trusted if it is invalid
+				long length = header.getLong();
+				if (length < 0 || length > this.config.maxBodyLength) {
+					System.out.println("Server rejecting body of "+ length +" bytes, closing connection");
+					sendResponse(out, connection, messageId, MessageType.InvalidBodyLength);
+					return;
 				}
+				RequestEvents.FrameRead event = RequestEvents.frameRead(connection, messageId, length);
+				body = ByteBuffer.allocate((int) length);
+				body.order(Message.byteOrder);
+				in.readFully(body.array());
+				RequestEvents.commit(event);
+				if (this.capture != null) { this.capture.request(connection, header, body); }
 				
 				System.out.println("Server recieved "+ messageId +": "+ type +":\n"+
 						(body.array().length != 0 ? "\t("+ body.array().length +")"+ App.bytesToHex(body.array()) : "\t<no body>"));
 
-				// send response asynchronously
-				CompletableFuture<Object> resolved = new CompletableFuture<Object>();
+				// error messages (0x40 to 0x7F) are not answered, so only calls (0x00 to 0x3F and 0x80 to 0xFF) count as pending
+				int code = type.get() & 0xFF;
+				boolean answered = code < 0x40 || code >= 0x80;
+				if (!bucket.tryAcquire()) {
+					sendResponse(out, connection, messageId, MessageType.ErrorOverloaded);
+					continue;
+				}
+				if (answered && pending.incrementAndGet() > this.config.maxPending) {
+					pending.decrementAndGet();
+					sendResponse(out, connection, messageId, MessageType.ErrorOverloaded);
+					continue;
+				}
+
+				Message request = new Message(type, body);
+				request.id = messageId;
+				request.connection = connection;
 
-				// let callback handle the message
-				this.handler.accept(new Message(type, body), (Message message) -> {
+				// let the handler handle the message once a worker gets to this clients lane, and send the response when it completes.
+				// The handler may complete requests on other threads, so the lane only starts the next request of this client
+				// after that; error messages are not waited for, the handler may never complete them
+				boolean queued = lane.submitAsync(() -> {
+					CompletionStage<Message> response;
 					try {
-						if (resolved.isDone()) {
-							throw new RuntimeException("response has already been sent");
-						}
-						this.sendResponse(out, messageId, message);
-						resolved.complete(null);
+						response = this.handler.handle(request);
 					} catch (Throwable e) {
-						System.out.println("Server failed to respond to packet "+ messageId +": "+ e.getMessage());
+						CompletableFuture<Message> failed = new CompletableFuture<Message>();
+						failed.completeExceptionally(e);
+						response = failed;
 					}
+					CompletionStage<Message> sent = response.whenComplete((message, error) -> {
+						if (answered) { pending.decrementAndGet(); }
+						try {
+							if (error != null) {
+								message = new Message(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+							}
+							if (message != null) { this.sendResponse(out, connection, messageId, message); }
+						} catch (Throwable e) {
+							System.out.println("Server failed to respond to packet "+ messageId +": "+ e.getMessage());
+						}
+					});
+					return answered ? sent : null;
 				});
+				if (!queued) {
+					if (answered) { pending.decrementAndGet(); }
+					sendResponse(out, connection, messageId, MessageType.ErrorOverloaded);
+				}
 				
 			} while (!Thread.currentThread().isInterrupted());
 		} finally {
@@ -155,13 +246,45 @@ public class Server implements AutoCloseable {
 	 * Creates a server that asynchronously accepts connections to 'port'
 	 * and passes the type and body of each incoming message to the handler function,
 	 * which can then invoke its second argument with its response Message
-	 * @param	port	The port to which the server listens
+	 * @param	port	The port to which the server listens, or 0 for one assigned by the system (see getPort())
 	 * @param	handler	function which will be called for each incoming message with the message and a response handler as arguments.
 	 * 					The response handler can be used once to respond to this message
 	 * @throws	InterruptedException	Thrown if an Exception occurs while constructing the server
+	 * @throws	IOException	Not thrown without capture file
+	 */
+	public Server(int port, BiConsumer<Message, Consumer<Message>> handler) throws InterruptedException, IOException {
+		this(port, AsyncHandler.from(handler), new Config());
+	}
+	
+	/**
+	 * Server Constructor
+	 * Same as Server(port, handler), but with custom limits
+	 * @param	port	The port to which the server listens
+	 * @param	handler	function which will be called for each incoming message with the message and a response handler as arguments.
+	 * @param	config	The limits for the client connections
+	 * @throws	InterruptedException	Thrown if an Exception occurs while constructing the server
+	 * @throws	IOException	Thrown if the capture file can't be created
 	 */
-	public Server(int port, BiConsumer<Message, Consumer<Message>> handler) throws InterruptedException {
+	public Server(int port, BiConsumer<Message, Consumer<Message>> handler, Config config) throws InterruptedException, IOException {
+		this(port, AsyncHandler.from(handler), config);
+	}
+	
+	/**
+	 * Server Constructor
+	 * Same as Server(port, handler, config), but with a handler that returns its responses as CompletionStage.
+	 * The workers of the server only start the handling of the requests, so as long as the handler completes
+	 * the stages from other threads (like a Dispatcher with I/O executor does), they never wait for storage
+	 * @param	port	The port to which the server listens
+	 * @param	handler	function which will be called for each incoming message and returns the stage of the response
+	 * @param	config	The limits for the client connections
+	 * @throws	InterruptedException	Thrown if an Exception occurs while constructing the server
+	 * @throws	IOException	Thrown if the capture file can't be created
+	 */
+	public Server(int port, AsyncHandler handler, Config config) throws InterruptedException, IOException {
 		this.handler = handler;
+		this.config = config;
+		this.capture = config.captureFile != null ? new Capture(config.captureFile, config.captureQueued) : null;
+		this.scheduler = new FairScheduler(config.workers);
 		this.done = new CompletableFuture<Object>();
 		this.clients = new Vector<Socket>();
 		CompletableFuture<Object> wait = new CompletableFuture<Object>();
@@ -170,9 +293,20 @@ public class Server implements AutoCloseable {
 				ServerSocket server = new ServerSocket(port);
 			) {
 				this.socket = server;
+				this.port = server.getLocalPort();
 				wait.complete(null);
 				do {
 					Socket client = server.accept();
+					if (this.clients.size() >= this.config.maxConnections) {
+						System.out.println("Server rejecting client, "+ this.clients.size() +" connections open");
+						try {
+							client.getOutputStream().write(new Message(MessageType.ErrorOverloaded, null).frame((short) 0));
+						} catch (IOException e) {
+						} finally {
+							client.close();
+						}
+						continue;
+					}
 					Thread thread = new Thread(() -> {
 						System.out.println("Server client connected");
 						try {
@@ -211,9 +345,14 @@ public class Server implements AutoCloseable {
 	 * Closes the server and interrupts all associates threads
 	 */
 	public void close() {
-		if (this.thread == null) { return; }
+		synchronized (this) {
+			if (this.closed) { return; }
+			this.closed = true;
+		}
 		this.softClose();
-		for (Socket client : this.clients) {
+		this.scheduler.close();
+		if (this.capture != null) { this.capture.close(); }
+		for (Socket client : this.clients.toArray(new Socket[0])) {
 			try {
 				client.close();
 			} catch (Exception e) {
@@ -238,6 +377,14 @@ public class Server implements AutoCloseable {
 		this.thread =  null;
 	}
 	
+	/**
+	 * Returns the port the server listens to, i.e. the one assigned by the system if the server was created with port 0
+	 * @return	The local port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+	
 	/**
 	 * Blocks until the server thread is done and then throws any exceptions which the server thread caused
 	 * @throws	Exception	Thrown if the server thread threw
@@ -248,16 +395,91 @@ public class Server implements AutoCloseable {
 	
 	/**
 	 * The main methods to start the server
-	 * @param	args	Optional port number
+	 * @param	args	Optional port number, optionally followed by either
+	 * 					'--leader <replicationPort>' to accept followers on that port, or
+	 * 					'--follow <host>:<replicationPort>' to serve a read-only replica of that leader, or
+	 * 					'--shards <count>' to partition the bookings across that many databases,
+	 * 					and optionally by '--capture <file>' to record the traffic for Replay
+	 * 					and '--io-threads <count>' to set the number of threads for storage calls (default 4)
 	 */
 	public static void main(String[] args) {
 		int port = 8080;
-		if (args.length > 0) {
-			port = Integer.parseInt(args[0]);
+		int replicationPort = -1;
+		String leaderAddress = null;
+		int shards = 0;
+		int ioThreads = 4;
+		Config config = new Config();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--leader") && i + 1 < args.length) {
+				replicationPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--follow") && i + 1 < args.length) {
+				leaderAddress = args[++i];
+			} else if (args[i].equals("--shards") && i + 1 < args.length) {
+				shards = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--capture") && i + 1 < args.length) {
+				config.captureFile = args[++i];
+			} else if (args[i].equals("--io-threads") && i + 1 < args.length) {
+				ioThreads = Integer.parseInt(args[++i]);
+			} else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
+		if ((replicationPort >= 0 ? 1 : 0) + (leaderAddress != null ? 1 : 0) + (shards > 0 ? 1 : 0) > 1) {
+			System.out.println("Server can only use one of --leader, --follow and --shards");
+			return;
 		}
 		String databaseDirectory = ".\\db";
+		ReplicationLeader leader = null;
+		ReplicationFollower follower = null;
+		ExecutorService io = Executors.newFixedThreadPool(ioThreads, runnable -> {
+			Thread thread = new Thread(runnable, "Storage");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			CoalescingHandler handler;
+			if (leaderAddress != null) {
+				int colon = leaderAddress.lastIndexOf(':');
+				QueryEngine replica = new QueryEngine();
+				handler = new CoalescingHandler(AsyncHandler.from(Handler.getReplicaHandler(replica)));
+				follower = new ReplicationFollower( // replicated writes must start new generations of coalesced reads
+					leaderAddress.substring(0, colon), Integer.parseInt(leaderAddress.substring(colon + 1)), replica, handler::write
+				);
+				System.out.println("Server following "+ leaderAddress);
+			} else if (replicationPort >= 0) {
+				ReplicationLog log = new ReplicationLog(100000);
+				Dispatcher dispatcher = Handler.getDispatcher(databaseDirectory, log, io);
+				leader = new ReplicationLeader(replicationPort, log, dispatcher); // takes its snapshots synchronously
+				handler = new CoalescingHandler(dispatcher::handle);
+				System.out.println("Server accepting followers at port "+ replicationPort);
+			} else if (shards > 0) {
+				handler = new CoalescingHandler(ShardedHandler.getDispatcher(databaseDirectory, shards, io)::handle);
+				System.out.println("Server using "+ shards +" shards");
+			} else {
+				Dispatcher dispatcher = Handler.getDispatcher(databaseDirectory, null, io);
+				handler = new CoalescingHandler(dispatcher::handle);
+			}
+			Server.run(port, handler, config);
+		} catch (Throwable e) {
+			System.out.println("Server failed to start: "+ e.getClass() +", "+ e.getMessage());
+		} finally {
+			if (leader != null) { leader.close(); }
+			if (follower != null) { follower.close(); }
+			io.shutdown();
+		}
+		System.out.println("Server quit application");
+	}
+	
+	/**
+	 * Runs a server with the handler until it is closed by Ctrl+C
+	 * @param	port	The port to which the server listens
+	 * @param	handler	The handler of the server
+	 * @param	config	The limits of the server
+	 * @throws	Exception	Thrown if the server fails to start
+	 */
+	private static void run(int port, AsyncHandler handler, Config config) throws Exception {
 		try (
-			Server server = new Server(port, Handler.getHandler(databaseDirectory));
+			Server server = new Server(port, handler, config);
 		) {
 			System.out.println("Server running at port"+ port +", press Ctrl+C to quit");
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -270,9 +492,6 @@ public class Server implements AutoCloseable {
 			} catch (Exception e) {
 				System.out.println("Server terminated unexpected: "+ e.getClass() +", "+ e.getMessage());
 			}
-		} catch (Throwable e) {
-			System.out.println("Server failed to start: "+ e.getClass() +", "+ e.getMessage());
 		}
-		System.out.println("Server quit application");
 	}
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+package de.tuhh.vs;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+import de.tuhh.vs.Message.ProtocolError;
+import de.tuhh.vs.samples.common.db.DBException;
+import de.tuhh.vs.samples.common.db.FlatDB;
+
+public abstract class ShardedHandler {
+
+	/**
+	 * A single partition: its own database, in-memory copy and thread, so it is its own lock domain and I/O queue.
+	 * The bookings in the database have shard local ids, the ones in the engine the global ids
+	 */
+	private static class Shard {
+		final int index;
+		final FlatDB<Booking> db;
+		final QueryEngine engine = new QueryEngine();
+		final ExecutorService executor;
+
+		Shard(int index, String dbDirectory) throws DBException {
+			this.index = index;
+			this.db = new FlatDB<Booking>(dbDirectory);
+			this.executor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Shard "+ index);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Returns a handler that partitions the bookings across 'count' FlatDBs in the subdirectories
+	 * 'shard-0' to 'shard-<count - 1>' of 'dbDirectory', see getDispatcher(dbDirectory, count, io)
+	 * @param 	dbDirectory	The path to the directory that contains the shard directories
+	 * @param	count		The number of shards, must not change for an existing directory
+	 * @return	A handler function that closures around the databases and can be passed to the server
+	 * @throws	DBException	Thrown
+	 * @throws	ArithmeticException	Thrown if a shard contains a booking whose global id doesn't fit in an int
+	 */
+	public static final BiConsumer<Message, Consumer<Message>> getHandler(String dbDirectory, int count) throws DBException, ArithmeticException {
+		return ShardedHandler.getDispatcher(dbDirectory, count, null);
+	}
+
+	/**
+	 * Returns a dispatcher that partitions the bookings across 'count' FlatDBs in the subdirectories
+	 * 'shard-0' to 'shard-<count - 1>' of 'dbDirectory'. New bookings are assigned to the shards round robin.
+	 * The global id of a booking is (localId * count + shard), see globalId(),
+	 * so CallDelete and CallEdit go directly to the shard that owns the booking, while CallGetAll and CallQuery
+	 * are evaluated by all shards in parallel and their results are concatenated.
+	 * The concatenation waits for the last shard, since the header of the response frame carries the length of its body.
+	 * A booking whose global id would not fit in an int is rolled back and answered with an error.
+	 * The storage calls run on the thread of their shard, the stages of the dispatcher wait for them,
+	 * so as AsyncHandler (dispatcher::handle) with an I/O executor the network threads never wait for a shard.
+	 * CallQueryEncoded is not supported, since every shard has its own purpose dictionary.
+	 * @param 	dbDirectory	The path to the directory that contains the shard directories
+	 * @param	count		The number of shards, must not change for an existing directory
+	 * @param	io			The executor for the stages, or null
+	 * @return	The dispatcher with the stages of all supported requests
+	 * @throws	DBException	Thrown
+	 * @throws	ArithmeticException	Thrown if a shard contains a booking whose global id doesn't fit in an int
+	 */
+	public static final Dispatcher getDispatcher(String dbDirectory, int count, Executor io) throws DBException, ArithmeticException {
+
+		final Shard[] shards = new Shard[count];
+		final AtomicInteger next = new AtomicInteger(0); // round robin for inserts
+		for (int i = 0; i < count; i++) {
+			File directory = new File(dbDirectory, "shard-"+ i);
+			directory.mkdirs();
+			Shard shard = shards[i] = new Shard(i, directory.getPath());
+			for (Booking booking : shard.db) { shard.engine.insert(ShardedHandler.global(booking, shard, count)); }
+		}
+
+		Dispatcher.Action<Query, ByteBuffer> scan = (request, query) -> {
+			List<CompletableFuture<ByteBuffer>> parts = new ArrayList<CompletableFuture<ByteBuffer>>(count);
+			for (Shard shard : shards) {
+				parts.add(CompletableFuture.supplyAsync(() -> shard.engine.query(query), shard.executor));
+			}
+			int length = 0;
+			for (CompletableFuture<ByteBuffer> part : parts) { length += ShardedHandler.await(part).limit(); }
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.order(Message.byteOrder);
+			for (CompletableFuture<ByteBuffer> part : parts) { buffer.put(part.join().array(), 0, part.join().limit()); }
+			System.out.println("Server merged "+ length +" bytes from "+ count +" shards");
+			return buffer;
+		};
+
+		Dispatcher dispatcher = new Dispatcher(io);
+		dispatcher.register(MessageType.CallGetAll, request -> new Query(), scan, Dispatcher.body(MessageType.ResolveGetAll));
+		dispatcher.register(MessageType.CallQuery, Dispatcher.query, scan, Dispatcher.body(MessageType.ResolveQuery));
+
+		dispatcher.register(MessageType.CallInsert, Dispatcher.booking, (request, booking) -> {
+			Shard shard = shards[Math.floorMod(next.getAndIncrement(), count)];
+			return ShardedHandler.call(shard, () -> {
+				shard.db.insert(booking);
+				Booking global;
+				try {
+					global = ShardedHandler.global(booking, shard, count);
+				} catch (ArithmeticException e) {
+					shard.db.delete(booking);
+					throw new ArithmeticException("Shard "+ shard.index +" is full, local id "+ booking.getKey() +" has no global id");
+				}
+				shard.engine.insert(global);
+				ByteBuffer buffer = ByteBuffer.allocate(4);
+				buffer.order(Message.byteOrder);
+				buffer.putInt(global.getKey());
+				System.out.println("Server inserted "+ global +" into shard "+ shard.index);
+				return buffer;
+			});
+		}, Dispatcher.body(MessageType.ResolveInsert));
+
+		dispatcher.register(MessageType.CallDelete, request -> new BookingView(request.body), (request, booking) -> {
+			int id = booking.getKey();
+			if (id < 0) { throw new ProtocolError(MessageType.InvalidBookingId); }
+			Shard shard = shards[ShardedHandler.shardOf(id, count)];
+			return ShardedHandler.call(shard, () -> {
+				Booking current = shard.db.get(ShardedHandler.localId(id, count));
+				if (current == null || !booking.equals(ShardedHandler.global(current, shard, count))) {
+					return MessageType.ErrorDeleteEntyChanged;
+				}
+				shard.db.delete(current);
+				shard.engine.delete(id);
+				System.out.println("Server deleted "+ id +" from shard "+ shard.index);
+				return MessageType.ResolveDelete;
+			});
+		}, Dispatcher.empty);
+
+		dispatcher.register(MessageType.CallEdit, request -> new Handler.Edit(request.body), (request, edit) -> {
+			int id = edit.old.getKey();
+			if (id < 0 || id != edit.now.getKey()) { return MessageType.ErrorChangeIdMismatch; }
+			Shard shard = shards[ShardedHandler.shardOf(id, count)];
+			Booking now = edit.now;
+			now.setKey(ShardedHandler.localId(id, count));
+			return ShardedHandler.call(shard, () -> {
+				Booking current = shard.db.get(now.getKey());
+				if (current == null) { return MessageType.ErrorChangeIdMismatch; }
+				if (!edit.old.equals(ShardedHandler.global(current, shard, count))) { return MessageType.ErrorChangeEntyChanged; }
+				shard.db.update(now);
+				shard.engine.update(ShardedHandler.global(now, shard, count));
+				System.out.println("Server updated "+ id +" in shard "+ shard.index);
+				return MessageType.ResolveEdit;
+			});
+		}, Dispatcher.empty);
+
+		return dispatcher;
+	}
+
+	/**
+	 * Runs the task on the thread of the shard and waits for its result
+	 * @throws	Exception	The exception thrown by the task
+	 */
+	private static <T> T call(Shard shard, Callable<T> task) throws Exception {
+		return ShardedHandler.await(shard.executor.submit(task));
+	}
+
+	/**
+	 * Waits for the result of a task that runs on the thread of a shard
+	 * @throws	Exception	The exception thrown by the task
+	 */
+	private static <T> T await(Future<T> result) throws Exception {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Returns a copy of the booking from the database of 'shard' with its global id
+	 * @throws	ArithmeticException	Thrown if the global id doesn't fit in an int
+	 */
+	private static Booking global(Booking local, Shard shard, int count) throws ArithmeticException {
+		return new Booking(ShardedHandler.globalId(local.getKey(), shard.index, count), local.getPurposeBytes(), local.getAmount(), local.getTimestamp());
+	}
+
+	/**
+	 * Encodes the shard local id of a booking into its global id
+	 * @param	localId	The id in the database of the shard, not negative
+	 * @param	shard	The index of the shard
+	 * @param	count	The number of shards
+	 * @return			localId * count + shard
+	 * @throws	ArithmeticException	Thrown if the global id doesn't fit in an int
+	 */
+	static int globalId(int localId, int shard, int count) throws ArithmeticException {
+		return Math.addExact(Math.multiplyExact(localId, count), shard);
+	}
+
+	/**
+	 * Returns the index of the shard that owns a global id
+	 * @param	globalId	The global id, not negative
+	 * @param	count		The number of shards
+	 * @return				The index of the shard
+	 */
+	static int shardOf(int globalId, int count) {
+		return globalId % count;
+	}
+
+	/**
+	 * Returns the id in the database of its shard of a global id
+	 * @param	globalId	The global id, not negative
+	 * @param	count		The number of shards
+	 * @return				The shard local id
+	 */
+	static int localId(int globalId, int count) {
+		return globalId / count;
+	}
+}
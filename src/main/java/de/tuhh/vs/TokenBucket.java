@@ -0,0 +1,54 @@
+package de.tuhh.vs;
+
+/**
+ * Token bucket rate limiter: allows bursts of up to 'burst' requests and refills with 'rate' tokens per second.
+ * Not thread safe, every connection has its own bucket which is only used by its reader thread
+ */
+public class TokenBucket {
+
+	private final double rate; // tokens per nanosecond
+	private final double burst;
+	private double tokens;
+	private long last;
+
+	/**
+	 * TokenBucket Constructor
+	 * Creates a full bucket
+	 * @param	rate	The sustained number of requests per second
+	 * @param	burst	The maximum number of requests that can be taken at once
+	 */
+	public TokenBucket(double rate, double burst) {
+		this(rate, burst, System.nanoTime());
+	}
+
+	/**
+	 * TokenBucket Constructor
+	 * Creates a full bucket at the given time, for tests that pass the time to tryAcquire(now)
+	 */
+	TokenBucket(double rate, double burst, long now) {
+		this.rate = rate / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = now;
+	}
+
+	/**
+	 * Takes a token if one is available
+	 * @return	Whether the request may proceed
+	 */
+	public boolean tryAcquire() {
+		return this.tryAcquire(System.nanoTime());
+	}
+
+	/**
+	 * Takes a token if one is available at the given time
+	 * @param	now	The current System.nanoTime()
+	 */
+	boolean tryAcquire(long now) {
+		this.tokens = Math.min(this.burst, this.tokens + (now - this.last) * this.rate);
+		this.last = now;
+		if (this.tokens < 1) { return false; }
+		this.tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,59 @@
+package de.tuhh.vs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class AsyncHandlerTest extends TestCase {
+
+	public void testFromCompletesWithTheCallback() throws Exception {
+		List<Consumer<Message>> callbacks = new ArrayList<Consumer<Message>>();
+		AsyncHandler handler = AsyncHandler.from((request, response) -> callbacks.add(response));
+		CompletableFuture<Message> response = handler.handle(new Message(MessageType.CallGetAll, null)).toCompletableFuture();
+		assertFalse(response.isDone());
+
+		callbacks.get(0).accept(new Message(MessageType.ResolveGetAll, null));
+		assertEquals(MessageType.ResolveGetAll, response.get().type);
+		callbacks.get(0).accept(new Message(MessageType.InvalidPacketType, null)); // ignored
+		assertEquals(MessageType.ResolveGetAll, response.get().type);
+	}
+
+	public void testFromCompletesExceptionallyIfTheHandlerThrows() {
+		AsyncHandler handler = AsyncHandler.from((request, response) -> { throw new IllegalStateException("broken"); });
+		CompletableFuture<Message> response = handler.handle(new Message(MessageType.CallGetAll, null)).toCompletableFuture();
+		assertTrue(response.isCompletedExceptionally());
+	}
+
+	public void testAsConsumerRespondsOnCompletion() {
+		CompletableFuture<Message> stage = new CompletableFuture<Message>();
+		AsyncHandler handler = request -> stage;
+		List<Message> received = new ArrayList<Message>();
+		handler.asConsumer().accept(new Message(MessageType.CallGetAll, null), received::add);
+		assertEquals(0, received.size());
+		stage.complete(new Message(MessageType.ResolveGetAll, null));
+		assertEquals(1, received.size());
+		assertEquals(MessageType.ResolveGetAll, received.get(0).type);
+	}
+
+	public void testAsConsumerSkipsNullAndReportsErrors() {
+		List<Message> received = new ArrayList<Message>();
+		AsyncHandler none = request -> CompletableFuture.completedFuture(null);
+		none.asConsumer().accept(new Message(MessageType.CallGetAll, null), received::add);
+		assertEquals("a stage completed with null sends no response", 0, received.size());
+
+		AsyncHandler failing = request -> {
+			CompletableFuture<Message> failed = new CompletableFuture<Message>();
+			failed.completeExceptionally(new IllegalStateException("broken"));
+			return failed;
+		};
+		failing.asConsumer().accept(new Message(MessageType.CallGetAll, null), received::add);
+		assertEquals(1, received.size());
+		assertEquals(MessageType.ErrorCustom, received.get(0).type);
+		assertEquals("broken", new String(received.get(0).body.array(), Message.charset));
+	}
+}
@@ -0,0 +1,101 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import de.tuhh.vs.Message.MessageType;
+import de.tuhh.vs.Message.ProtocolError;
+
+public class BookingCursorTest extends TempDirectoryTestCase {
+
+	private static ByteBuffer body(Booking... bookings) {
+		int length = 0;
+		for (Booking booking : bookings) { length += booking.size(); }
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(Message.byteOrder);
+		for (Booking booking : bookings) { booking.write(buffer); }
+		buffer.position(0);
+		return buffer;
+	}
+
+	private static void assertSame(Booking expected, BookingView view) {
+		assertEquals(expected.getKey(), view.getKey());
+		assertEquals(expected.getPurpose(), view.getPurpose());
+		assertEquals(expected.getAmount(), view.getAmount());
+		assertEquals(expected.getTimestamp(), view.getTimestamp());
+		assertEquals(expected.size(), view.size());
+		assertTrue(view.equals(expected));
+		assertTrue(expected.equals(view.toBooking()));
+	}
+
+	public void testCursorMatchesBookings() {
+		ByteBuffer body = BookingCursorTest.body(
+			new Booking(1, "Rent", 800, 1000),
+			new Booking(2, "", 0, 2000),
+			new Booking(3, "Exactly8", -12.5, 3000),
+			new Booking(4, "Gebhren fr berweisungen", 1.99, 4000)
+		);
+		List<Booking> decoded = new ArrayList<Booking>();
+		while (body.position() < body.limit()) { decoded.add(new Booking(body)); }
+		body.position(0);
+
+		BookingCursor cursor = new BookingCursor(body);
+		assertEquals(0, body.position());
+		assertEquals(decoded.size(), cursor.size());
+		for (int i = 0; i < cursor.size(); i++) {
+			BookingCursorTest.assertSame(decoded.get(i), cursor.get(i));
+			assertTrue(decoded.get(i).equals(cursor.materialize(i)));
+		}
+
+		Iterator<BookingView> iterator = cursor.iterator();
+		for (Booking booking : decoded) {
+			BookingCursorTest.assertSame(booking, iterator.next());
+		}
+		assertFalse(iterator.hasNext());
+
+		// views are independent of the shared one that get() moves
+		BookingView first = cursor.view(0);
+		cursor.get(3);
+		BookingCursorTest.assertSame(decoded.get(0), first);
+
+		// the sequential constructor advances the position like Booking(ByteBuffer)
+		for (Booking booking : decoded) {
+			BookingCursorTest.assertSame(booking, new BookingView(body));
+		}
+		assertEquals(body.limit(), body.position());
+	}
+
+	public void testTruncatedBody() {
+		ByteBuffer body = BookingCursorTest.body(new Booking(1, "Rent", 800, 1000), new Booking(2, "Groceries", 40, 2000));
+		body.limit(body.limit() - 1);
+		try {
+			new BookingCursor(body);
+			fail("accepted a truncated booking");
+		} catch (ProtocolError e) {
+			assertEquals(MessageType.InvalidFieldLength, e.messageType);
+		}
+		assertEquals(0, new BookingCursor(ByteBuffer.allocate(0)).size());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testGetAllCursor() throws Exception {
+		try (
+			Server server = new Server(0, Handler.getHandler(this.tempDirectory()));
+			Client client = new Client(server.getPort());
+		) {
+			client.insert(new Booking("Rent", 800)).get();
+			client.insert(new Booking("Gebhren", 1.99)).get();
+			client.insert(new Booking("Rental car", 120)).get();
+
+			Vector<Booking> bookings = (Vector<Booking>) client.getAll().get();
+			BookingCursor cursor = (BookingCursor) client.getAllCursor().get();
+			assertEquals(3, cursor.size());
+			for (int i = 0; i < cursor.size(); i++) {
+				BookingCursorTest.assertSame(bookings.get(i), cursor.get(i));
+			}
+		}
+	}
+}
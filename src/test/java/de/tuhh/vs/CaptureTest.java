@@ -0,0 +1,76 @@
+package de.tuhh.vs;
+
+import java.io.File;
+import java.util.List;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class CaptureTest extends TempDirectoryTestCase {
+
+	public void testReplayOfCaptureMatchesChecksums() throws Exception {
+		File capture = this.tempFile("capture");
+		Server.Config config = new Server.Config();
+		config.captureFile = capture.getPath();
+		try (
+			Server server = new Server(0, Handler.getHandler(this.tempDirectory()), config);
+			Client client = new Client(server.getPort());
+		) {
+			Booking rent = new Booking("Rent", 800);
+			rent.setKey((Integer) client.insert(rent).get());
+			Booking groceries = new Booking("Groceries", 40);
+			groceries.setKey((Integer) client.insert(groceries).get());
+			client.getAll().get();
+			Booking edited = new Booking(groceries.getKey(), "Groceries", 42, groceries.getTimestamp());
+			client.edit(groceries, edited).get();
+			client.query(new Query().purposeStartsWith("Gro")).get();
+			client.delete(rent).get();
+			client.getAll().get();
+		}
+
+		List<Capture.Record> records = Capture.read(capture.getPath());
+		int requests = 0, responses = 0;
+		for (Capture.Record record : records) {
+			if (record.kind == Capture.request) { requests++; } else { responses++; }
+		}
+		assertEquals(7, requests);
+		assertEquals(7, responses);
+
+		// replaying against the state the capture started with, an empty database, gives the same responses
+		try (
+			Server server = new Server(0, Handler.getHandler(this.tempDirectory()));
+		) {
+			Replay.Report report = Replay.replay(records, server.getPort(), Double.POSITIVE_INFINITY);
+			assertEquals(report.details.toString(), 0, report.divergences);
+			assertEquals(0, report.missing);
+		}
+
+		// replaying against a database that already contains the bookings diverges
+		try (
+			Server server = new Server(0, Handler.getHandler(this.tempDirectory()));
+			Client client = new Client(server.getPort());
+		) {
+			client.insert(new Booking("Coffee", 2.5)).get();
+			Replay.Report report = Replay.replay(records, server.getPort(), Double.POSITIVE_INFINITY);
+			assertTrue(report.divergences > 0);
+		}
+	}
+
+	public void testFullQueueDropsRecords() throws Exception {
+		File file = this.tempFile("dropped");
+		Capture capture = new Capture(file.getPath(), 2, false); // nothing is written until start()
+		for (short id = 1; id <= 5; id++) {
+			capture.response(1, id, new Message(MessageType.ResolveDelete, null));
+		}
+		assertEquals(3, capture.dropped());
+		capture.start();
+		capture.close();
+		capture.response(1, (short) 6, new Message(MessageType.ResolveDelete, null));
+		assertEquals("a record after close() is counted, not silently discarded", 4, capture.dropped());
+
+		List<Capture.Record> records = Capture.read(file.getPath());
+		assertEquals(2, records.size());
+		assertEquals(1, records.get(0).messageId);
+		assertEquals(2, records.get(1).messageId);
+		assertEquals(MessageType.ResolveDelete.get(), records.get(1).type);
+	}
+}
@@ -0,0 +1,136 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class CoalescingHandlerTest extends TestCase {
+
+	/**
+	 * Handler that keeps the response callbacks of all requests until the test responds to them
+	 */
+	private static class Held implements BiConsumer<Message, Consumer<Message>> {
+		final List<Message> requests = new ArrayList<Message>();
+		final List<Consumer<Message>> responses = new ArrayList<Consumer<Message>>();
+
+		@Override
+		public synchronized void accept(Message request, Consumer<Message> response) {
+			this.requests.add(request);
+			this.responses.add(response);
+		}
+
+		synchronized int count() { return this.requests.size(); }
+
+		void respond(int index, Message message) {
+			Consumer<Message> response;
+			synchronized (this) { response = this.responses.get(index); }
+			response.accept(message);
+		}
+	}
+
+	/**
+	 * Collects the responses of one client
+	 */
+	private static class Responses implements Consumer<Message> {
+		final List<Message> received = new ArrayList<Message>();
+		@Override public synchronized void accept(Message message) { this.received.add(message); }
+		synchronized int count() { return this.received.size(); }
+	}
+
+	private static Message request(MessageType type, int body) {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.order(Message.byteOrder);
+		buffer.putInt(body);
+		buffer.position(0);
+		return new Message(type, buffer);
+	}
+
+	private static Message ledger(int value) {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.order(Message.byteOrder);
+		buffer.putInt(0, value);
+		return new Message(MessageType.ResolveGetAll, buffer);
+	}
+
+	public void testConcurrentReadsShareOneComputation() throws Exception {
+		Held held = new Held();
+		CoalescingHandler handler = new CoalescingHandler(AsyncHandler.from(held));
+		List<Responses> clients = new ArrayList<Responses>();
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < 8; i++) {
+			Responses responses = new Responses();
+			clients.add(responses);
+			threads.execute(() -> {
+				try {
+					start.await();
+					handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(responses);
+				} catch (InterruptedException e) { }
+			});
+		}
+		start.countDown();
+		threads.shutdown();
+		assertTrue(threads.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(1, held.count());
+
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 1)).thenAccept(new Responses());
+		assertEquals("a different body must not be coalesced", 2, held.count());
+
+		held.respond(0, CoalescingHandlerTest.ledger(42));
+		for (Responses responses : clients) {
+			assertEquals(1, responses.count());
+			Message message = responses.received.get(0);
+			assertEquals(MessageType.ResolveGetAll, message.type);
+			assertTrue(message.body.isReadOnly());
+			assertEquals(42, message.body.getInt(0));
+		}
+
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(new Responses());
+		assertEquals("a completed read must not be joined", 3, held.count());
+	}
+
+	public void testReadOverlappingWriteIsNotCoalesced() {
+		Held held = new Held();
+		CoalescingHandler handler = new CoalescingHandler(AsyncHandler.from(held));
+		Responses before = new Responses(), during = new Responses(), after = new Responses(), write = new Responses();
+
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(before);
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallInsert, 0)).thenAccept(write);
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(during);
+		assertEquals("a read after a write started must not join an earlier read", 3, held.count());
+
+		held.respond(1, new Message(MessageType.ResolveInsert, null));
+		assertEquals(1, write.count());
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(after);
+		assertEquals("a read after a write completed must not join a read that overlapped it", 4, held.count());
+
+		held.respond(0, CoalescingHandlerTest.ledger(1));
+		held.respond(2, CoalescingHandlerTest.ledger(2));
+		held.respond(3, CoalescingHandlerTest.ledger(3));
+		assertEquals(1, before.received.get(0).body.getInt(0));
+		assertEquals(2, during.received.get(0).body.getInt(0));
+		assertEquals(3, after.received.get(0).body.getInt(0));
+	}
+
+	public void testReplicatedWriteStartsNewGeneration() {
+		Held held = new Held();
+		CoalescingHandler handler = new CoalescingHandler(AsyncHandler.from(held));
+		QueryEngine replica = new QueryEngine();
+
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(new Responses());
+		handler.write(() -> replica.insert(new Booking(1, "Rent", 800, 1000)));
+		assertEquals(1, replica.size());
+		handler.handle(CoalescingHandlerTest.request(MessageType.CallGetAll, 0)).thenAccept(new Responses());
+		assertEquals("a read after a replicated write must not join an earlier read", 2, held.count());
+	}
+}
@@ -0,0 +1,109 @@
+package de.tuhh.vs;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+
+/**
+ * Compares the table driven MessageType.from and Dispatcher with the previous linear scan and central switch.
+ * Not a unit test, run it with: java -cp target/classes:target/test-classes de.tuhh.vs.DispatchBenchmark
+ */
+public class DispatchBenchmark {
+
+	private static final int operations = 1 << 22;
+	private static final int warmups = 5;
+	private static final int rounds = 10;
+	private static volatile long sink;
+
+	private interface Benchmark { long run(); }
+
+	/**
+	 * The previous implementation of MessageType.from
+	 */
+	private static MessageType scan(byte it) {
+		for (MessageType item : MessageType.values()) {
+			if (item.get() == it) { return item; }
+		}
+		throw new IllegalArgumentException("Invalid message id: "+ it);
+	}
+
+	/**
+	 * The shape of the previous handler: decoding, execution and encoding in one switch, with the same tracing
+	 */
+	private static void dispatch(Message request, Consumer<Message> response) {
+		RequestEvents.Handle handle = RequestEvents.handle(request);
+		RequestEvents.commit(RequestEvents.decode(request));
+		switch (request.type) {
+			case CallGetAll: {
+				response.accept(new Message(MessageType.ResolveGetAll, null));
+			} break;
+			case CallInsert: {
+				response.accept(new Message(MessageType.ResolveInsert, null));
+			} break;
+			case CallDelete: {
+				response.accept(new Message(MessageType.ResolveDelete, null));
+			} break;
+			case CallEdit: {
+				response.accept(new Message(MessageType.ResolveEdit, null));
+			} break;
+			case CallQuery: {
+				response.accept(new Message(MessageType.ResolveQuery, null));
+			} break;
+			default: {
+				response.accept(new Message(MessageType.InvalidPacketType, null));
+			}
+		}
+		RequestEvents.commit(handle);
+	}
+
+	private static void measure(String name, Benchmark benchmark) {
+		for (int i = 0; i < warmups; i++) { sink += benchmark.run(); }
+		double[] times = new double[rounds];
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			sink += benchmark.run();
+			times[i] = (System.nanoTime() - start) / (double) operations;
+		}
+		Arrays.sort(times);
+		System.out.println(String.format("%-28s %8.2f ns/op (best %.2f)", name, times[rounds / 2], times[0]));
+	}
+
+	public static void main(String[] args) {
+		byte[] types = new byte[256];
+		MessageType[] calls = { MessageType.CallGetAll, MessageType.CallInsert, MessageType.CallDelete, MessageType.CallEdit, MessageType.CallQuery };
+		for (int i = 0; i < types.length; i++) { types[i] = calls[i % calls.length].get(); }
+		Message[] requests = new Message[types.length];
+		for (int i = 0; i < types.length; i++) { requests[i] = new Message(MessageType.from(types[i]), null); }
+
+		long[] count = new long[1];
+		Consumer<Message> response = message -> count[0] += message.type.get();
+		Dispatcher dispatcher = new Dispatcher()
+			.register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> MessageType.ResolveGetAll, Dispatcher.empty)
+			.register(MessageType.CallInsert, Dispatcher.none, (request, none) -> MessageType.ResolveInsert, Dispatcher.empty)
+			.register(MessageType.CallDelete, Dispatcher.none, (request, none) -> MessageType.ResolveDelete, Dispatcher.empty)
+			.register(MessageType.CallEdit, Dispatcher.none, (request, none) -> MessageType.ResolveEdit, Dispatcher.empty)
+			.register(MessageType.CallQuery, Dispatcher.none, (request, none) -> MessageType.ResolveQuery, Dispatcher.empty);
+
+		for (int repeat = 0; repeat < 2; repeat++) {
+			DispatchBenchmark.measure("MessageType linear scan", () -> {
+				long sum = 0;
+				for (int i = 0; i < operations; i++) { sum += DispatchBenchmark.scan(types[i & 0xFF]).ordinal(); }
+				return sum;
+			});
+			DispatchBenchmark.measure("MessageType.from table", () -> {
+				long sum = 0;
+				for (int i = 0; i < operations; i++) { sum += MessageType.from(types[i & 0xFF]).ordinal(); }
+				return sum;
+			});
+			DispatchBenchmark.measure("dispatch central switch", () -> {
+				for (int i = 0; i < operations; i++) { DispatchBenchmark.dispatch(requests[i & 0xFF], response); }
+				return count[0];
+			});
+			DispatchBenchmark.measure("dispatch Dispatcher table", () -> {
+				for (int i = 0; i < operations; i++) { dispatcher.accept(requests[i & 0xFF], response); }
+				return count[0];
+			});
+		}
+	}
+}
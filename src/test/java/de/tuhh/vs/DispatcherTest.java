@@ -0,0 +1,42 @@
+package de.tuhh.vs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class DispatcherTest extends TestCase {
+
+	public void testHandleRunsStagesOnTheIoExecutor() throws Exception {
+		ExecutorService io = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "DispatcherTest io"));
+		try {
+			Dispatcher dispatcher = new Dispatcher(io).register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> {
+				assertEquals("DispatcherTest io", Thread.currentThread().getName());
+				return MessageType.ResolveGetAll;
+			}, Dispatcher.empty);
+			assertEquals(MessageType.ResolveGetAll, dispatcher.handle(new Message(MessageType.CallGetAll, null)).toCompletableFuture().get(5, TimeUnit.SECONDS).type);
+
+			Message unknown = dispatcher.handle(new Message(MessageType.CallQuery, null)).toCompletableFuture().getNow(null);
+			assertEquals("requests without stage are answered right away", MessageType.InvalidPacketType, unknown.type);
+			assertNull("error messages are not answered", dispatcher.handle(new Message(MessageType.ErrorOverloaded, null)).toCompletableFuture().getNow(null));
+		} finally {
+			io.shutdown();
+		}
+	}
+
+	public void testHandleReportsFailedStages() throws Exception {
+		ExecutorService io = Executors.newSingleThreadExecutor();
+		try {
+			Dispatcher dispatcher = new Dispatcher(io).register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> {
+				throw new IllegalStateException("broken");
+			}, Dispatcher.empty);
+			Message response = dispatcher.handle(new Message(MessageType.CallGetAll, null)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+			assertEquals(MessageType.ErrorCustom, response.type);
+		} finally {
+			io.shutdown();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package de.tuhh.vs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class FairSchedulerTest extends TestCase {
+
+	/**
+	 * Submits the tasks of two lanes to a scheduler with a single worker, which is blocked until all are queued,
+	 * and returns the order in which the tasks ran
+	 */
+	private static List<String> run(int weightA, int weightB, int tasks) throws Exception {
+		List<String> order = new ArrayList<String>();
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2 * tasks);
+		try (
+			FairScheduler scheduler = new FairScheduler(1);
+		) {
+			assertTrue(scheduler.lane(1, 1).submit(() -> {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) { }
+			}));
+			FairScheduler.Lane a = scheduler.lane(weightA, tasks);
+			FairScheduler.Lane b = scheduler.lane(weightB, tasks);
+			for (int i = 0; i < tasks; i++) {
+				final int index = i;
+				assertTrue(a.submit(() -> { synchronized (order) { order.add("a"+ index); } done.countDown(); }));
+			}
+			for (int i = 0; i < tasks; i++) {
+				final int index = i;
+				assertTrue(b.submit(() -> { synchronized (order) { order.add("b"+ index); } done.countDown(); }));
+			}
+			blocked.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+		return order;
+	}
+
+	public void testLanesTakeTurns() throws Exception {
+		List<String> order = FairSchedulerTest.run(1, 1, 4);
+		assertEquals("[a0, b0, a1, b1, a2, b2, a3, b3]", order.toString());
+	}
+
+	public void testWeights() throws Exception {
+		List<String> order = FairSchedulerTest.run(2, 1, 4);
+		assertEquals("[a0, a1, b0, a2, a3, b1, b2, b3]", order.toString());
+	}
+
+	public void testCapacityAndClose() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		FairScheduler scheduler = new FairScheduler(1);
+		FairScheduler.Lane lane = scheduler.lane(1, 2);
+		assertTrue(lane.submit(() -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) { }
+		}));
+		Thread.sleep(50); // let the worker take the first task
+		assertTrue(lane.submit(() -> { }));
+		assertTrue(lane.submit(() -> { }));
+		assertFalse("a full lane accepted a task", lane.submit(() -> { }));
+		blocked.countDown();
+		scheduler.close();
+		assertFalse("a closed scheduler accepted a task", scheduler.lane(1, 2).submit(() -> { }));
+	}
+
+	public void testAsyncTaskHoldsItsLaneButNoWorker() throws Exception {
+		List<String> order = new ArrayList<String>();
+		CompletableFuture<Void> first = new CompletableFuture<Void>();
+		CountDownLatch done = new CountDownLatch(2);
+		try (
+			FairScheduler scheduler = new FairScheduler(1);
+		) {
+			FairScheduler.Lane a = scheduler.lane(1, 4);
+			FairScheduler.Lane b = scheduler.lane(1, 4);
+			assertTrue(a.submitAsync(() -> { synchronized (order) { order.add("a0"); } return first; }));
+			assertTrue(a.submit(() -> { synchronized (order) { order.add("a1"); } done.countDown(); }));
+			assertTrue(b.submit(() -> { synchronized (order) { order.add("b0"); } done.countDown(); }));
+			Thread.sleep(100);
+			synchronized (order) { assertEquals("the single worker runs other lanes meanwhile", "[a0, b0]", order.toString()); }
+			first.complete(null);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals("[a0, b0, a1]", order.toString());
+		}
+	}
+}
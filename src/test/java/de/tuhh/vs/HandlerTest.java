@@ -0,0 +1,78 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class HandlerTest extends TempDirectoryTestCase {
+
+	private static ByteBuffer body(Booking... bookings) {
+		int length = 0;
+		for (Booking booking : bookings) { length += booking.size(); }
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(Message.byteOrder);
+		for (Booking booking : bookings) { booking.write(buffer); }
+		buffer.position(0);
+		return buffer;
+	}
+
+	private static Message call(Dispatcher handler, MessageType type, ByteBuffer body) {
+		Message[] response = new Message[1];
+		handler.accept(new Message(type, body), message -> response[0] = message);
+		return response[0];
+	}
+
+	private static Map<Integer, Booking> decode(ByteBuffer buffer) {
+		buffer.position(0);
+		Map<Integer, Booking> all = new HashMap<Integer, Booking>();
+		while (buffer.position() < buffer.limit()) {
+			Booking booking = new Booking(buffer);
+			all.put(booking.getKey(), booking);
+		}
+		return all;
+	}
+
+	public void testConcurrentWritesKeepEngineInSync() throws Exception {
+		Dispatcher handler = Handler.getDispatcher(this.tempDirectory(), null, null);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			tasks.add(threads.submit(() -> {
+				for (int i = 0; i < 50; i++) {
+					Booking booking = new Booking("Booking "+ thread +"/"+ i, i);
+					Message inserted = HandlerTest.call(handler, MessageType.CallInsert, HandlerTest.body(booking));
+					assertEquals(MessageType.ResolveInsert, inserted.type);
+					booking.setKey(inserted.body.getInt(0));
+					Booking edited = new Booking(booking.getKey(), "Edited "+ thread +"/"+ i, i + 0.5, booking.getTimestamp());
+					assertEquals(MessageType.ResolveEdit, HandlerTest.call(handler, MessageType.CallEdit, HandlerTest.body(booking, edited)).type);
+					if (i % 2 == 0) {
+						assertEquals(MessageType.ResolveDelete, HandlerTest.call(handler, MessageType.CallDelete, HandlerTest.body(edited)).type);
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<Object> task : tasks) { task.get(); }
+		threads.shutdown();
+
+		Map<Integer, Booking> stored = HandlerTest.decode(HandlerTest.call(handler, MessageType.CallGetAll, ByteBuffer.allocate(0)).body);
+		ByteBuffer query = ByteBuffer.allocate(new Query().size());
+		query.order(Message.byteOrder);
+		new Query().write(query);
+		query.position(0);
+		Map<Integer, Booking> indexed = HandlerTest.decode(HandlerTest.call(handler, MessageType.CallQuery, query).body);
+		assertEquals(8 * 25, stored.size());
+		assertEquals(stored.size(), indexed.size());
+		for (Booking booking : stored.values()) {
+			assertTrue(booking +" differs in the engine", booking.equals(indexed.get(booking.getKey())));
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class LedgerCacheTest extends TempDirectoryTestCase {
+
+	private static ByteBuffer body(Booking... bookings) {
+		int length = 0;
+		for (Booking booking : bookings) { length += booking.size(); }
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(Message.byteOrder);
+		for (Booking booking : bookings) { booking.write(buffer); }
+		buffer.position(0);
+		return buffer;
+	}
+
+	private static ByteBuffer version(long epoch, long version) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.order(Message.byteOrder);
+		buffer.putLong(epoch);
+		buffer.putLong(version);
+		buffer.position(0);
+		return buffer;
+	}
+
+	private static Message call(Dispatcher handler, MessageType type, ByteBuffer body) {
+		Message[] response = new Message[1];
+		handler.accept(new Message(type, body), message -> response[0] = message);
+		return response[0];
+	}
+
+	private static int length(Message message) {
+		return message.body != null ? message.body.limit() : 0;
+	}
+
+	public void testPlainWritesKeepTheirAcknowledgements() throws Exception {
+		Dispatcher handler = Handler.getDispatcher(this.tempDirectory(), null, null);
+		Booking booking = new Booking("Plain", 1);
+		Message inserted = LedgerCacheTest.call(handler, MessageType.CallInsert, LedgerCacheTest.body(booking));
+		assertEquals(MessageType.ResolveInsert, inserted.type);
+		assertEquals(4, LedgerCacheTest.length(inserted));
+		booking.setKey(inserted.body.getInt(0));
+
+		Booking edited = new Booking(booking.getKey(), "Edited", 2, booking.getTimestamp());
+		Message edit = LedgerCacheTest.call(handler, MessageType.CallEdit, LedgerCacheTest.body(booking, edited));
+		assertEquals(MessageType.ResolveEdit, edit.type);
+		assertEquals(0, LedgerCacheTest.length(edit));
+
+		Message deleted = LedgerCacheTest.call(handler, MessageType.CallDelete, LedgerCacheTest.body(edited));
+		assertEquals(MessageType.ResolveDelete, deleted.type);
+		assertEquals(0, LedgerCacheTest.length(deleted));
+	}
+
+	public void testVersionedWritesAndNotModified() throws Exception {
+		Dispatcher handler = Handler.getDispatcher(this.tempDirectory(), null, null);
+		Message all = LedgerCacheTest.call(handler, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(0, 0));
+		assertEquals(MessageType.ResolveGetAllVersioned, all.type);
+		long epoch = all.body.getLong(0);
+		long version = all.body.getLong(8);
+
+		Message unchanged = LedgerCacheTest.call(handler, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(epoch, version));
+		assertEquals(MessageType.ResolveNotModified, unchanged.type);
+		assertEquals(0, LedgerCacheTest.length(unchanged));
+
+		Booking booking = new Booking("Versioned", 1);
+		Message inserted = LedgerCacheTest.call(handler, MessageType.CallInsertVersioned, LedgerCacheTest.body(booking));
+		assertEquals(MessageType.ResolveInsertVersioned, inserted.type);
+		assertEquals(4 + 16, LedgerCacheTest.length(inserted));
+		booking.setKey(inserted.body.getInt(0));
+		assertEquals(epoch, inserted.body.getLong(4));
+		assertEquals(version + 1, inserted.body.getLong(12));
+
+		Booking edited = new Booking(booking.getKey(), "Edited", 2, booking.getTimestamp());
+		Message edit = LedgerCacheTest.call(handler, MessageType.CallEditVersioned, LedgerCacheTest.body(booking, edited));
+		assertEquals(MessageType.ResolveEditVersioned, edit.type);
+		assertEquals(16, LedgerCacheTest.length(edit));
+		assertEquals(version + 2, edit.body.getLong(8));
+
+		Message deleted = LedgerCacheTest.call(handler, MessageType.CallDeleteVersioned, LedgerCacheTest.body(booking));
+		assertEquals("a stale delete is an error without version", MessageType.ErrorDeleteEntyChanged, deleted.type);
+		assertEquals(0, LedgerCacheTest.length(deleted));
+
+		Message stale = LedgerCacheTest.call(handler, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(epoch, version));
+		assertEquals(MessageType.ResolveGetAllVersioned, stale.type);
+		assertEquals(version + 2, stale.body.getLong(8));
+		Message current = LedgerCacheTest.call(handler, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(epoch, version + 2));
+		assertEquals(MessageType.ResolveNotModified, current.type);
+	}
+
+	public void testNewEpochReloads() throws Exception {
+		String directory = this.tempDirectory();
+		Dispatcher first = Handler.getDispatcher(directory, null, null);
+		Message all = LedgerCacheTest.call(first, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(0, 0));
+		long epoch = all.body.getLong(0);
+		long version = all.body.getLong(8);
+
+		Dispatcher restarted = Handler.getDispatcher(directory, null, null); // same data, same counter, but a new run
+		Message reloaded = LedgerCacheTest.call(restarted, MessageType.CallGetAllIfChanged, LedgerCacheTest.version(epoch, version));
+		assertEquals(MessageType.ResolveGetAllVersioned, reloaded.type);
+		assertTrue(reloaded.body.getLong(0) != epoch);
+	}
+
+	public void testClientCacheHitsAndMisses() throws Exception {
+		Dispatcher dispatcher = Handler.getDispatcher(this.tempDirectory(), null, null);
+		List<MessageType> responses = Collections.synchronizedList(new ArrayList<MessageType>());
+		BiConsumer<Message, Consumer<Message>> recording = (request, response) -> dispatcher.accept(request, message -> {
+			responses.add(message.type);
+			response.accept(message);
+		});
+		try (
+			Server server = new Server(0, recording);
+			Client client = new Client(server.getPort());
+			Client other = new Client(server.getPort());
+		) {
+			client.insert(new Booking("First", 1)).get();
+			assertEquals("the plain insert while nothing is cached", MessageType.ResolveInsert, responses.get(responses.size() - 1));
+
+			Object loaded = client.getAllCached().get();
+			assertEquals(MessageType.ResolveGetAllVersioned, responses.get(responses.size() - 1));
+			assertEquals(1, ((List<?>) loaded).size());
+			assertSame("a hit shares the cached list", loaded, client.getAllCached().get());
+			assertEquals(MessageType.ResolveNotModified, responses.get(responses.size() - 1));
+
+			int id = (Integer) client.insert(new Booking("Own", 2)).get();
+			assertEquals(MessageType.ResolveInsertVersioned, responses.get(responses.size() - 1));
+			List<?> own = (List<?>) client.getAllCached().get();
+			assertEquals("the own write is applied to the cache", MessageType.ResolveNotModified, responses.get(responses.size() - 1));
+			assertEquals(2, own.size());
+			assertEquals(id, ((Booking) own.get(1)).getKey());
+
+			other.insert(new Booking("Foreign", 3)).get();
+			List<?> changed = (List<?>) client.getAllCached().get();
+			assertEquals("a foreign write is a miss", MessageType.ResolveGetAllVersioned, responses.get(responses.size() - 1));
+			assertEquals(3, changed.size());
+		}
+	}
+}
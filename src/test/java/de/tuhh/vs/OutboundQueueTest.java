@@ -0,0 +1,120 @@
+package de.tuhh.vs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+public class OutboundQueueTest extends TestCase {
+
+	private ServerSocket listener;
+	private Socket client; // never reads unless a test says so
+	private Socket accepted;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.listener = new ServerSocket(0);
+		this.client = new Socket();
+		this.client.setReceiveBufferSize(4096); // small socket buffers, so the queue fills up quickly
+		this.client.connect(this.listener.getLocalSocketAddress());
+		this.accepted = this.listener.accept();
+		this.accepted.setSendBufferSize(4096);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		this.client.close();
+		this.accepted.close();
+		this.listener.close();
+	}
+
+	private static Server.Config config(long maxQueued, long evictAfter) {
+		Server.Config config = new Server.Config();
+		config.highWatermark = 64 << 10;
+		config.lowWatermark = 16 << 10;
+		config.maxQueued = maxQueued;
+		config.evictAfter = evictAfter;
+		return config;
+	}
+
+	/**
+	 * Offers frames until more than the high watermark is queued, i.e. the socket buffers are full as well
+	 */
+	private static void fill(OutboundQueue queue, long bytes) throws Exception {
+		for (int i = 0; queue.queued() <= bytes; i++) {
+			assertTrue("the writer never blocked", i < 10000);
+			queue.offer(new byte[8 << 10]);
+			if (i % 16 == 0) { Thread.sleep(1); } // let the writer fill the socket buffers
+		}
+	}
+
+	public void testClientThatNeverReadsIsEvictedAtMaxQueued() throws Exception {
+		OutboundQueue queue = new OutboundQueue(this.accepted, this.accepted.getOutputStream(), OutboundQueueTest.config(256 << 10, 60000));
+		int offered = 0;
+		try {
+			while (true) {
+				assertTrue("the client was never evicted", offered < 10000);
+				queue.offer(new byte[8 << 10]);
+				offered++;
+			}
+		} catch (IOException e) {
+			assertEquals("Connection evicted", e.getMessage());
+		}
+		assertTrue(offered >= (256 << 10) / (8 << 10));
+		assertTrue(this.accepted.isClosed());
+		assertEquals(0, queue.queued());
+		assertFalse(queue.awaitWritable());
+		try {
+			queue.offer(new byte[1]);
+			fail("an evicted queue accepted a frame");
+		} catch (IOException e) {
+			assertEquals("Connection closed", e.getMessage());
+		}
+		queue.close();
+	}
+
+	public void testPausedClientIsEvictedAfterTimeout() throws Exception {
+		OutboundQueue queue = new OutboundQueue(this.accepted, this.accepted.getOutputStream(), OutboundQueueTest.config(64 << 20, 300));
+		OutboundQueueTest.fill(queue, 64 << 10);
+		long start = System.currentTimeMillis();
+		assertFalse(queue.awaitWritable());
+		assertTrue(System.currentTimeMillis() - start >= 250);
+		assertTrue(this.accepted.isClosed());
+		queue.close();
+	}
+
+	public void testPausedClientResumesBelowLowWatermark() throws Exception {
+		OutboundQueue queue = new OutboundQueue(this.accepted, this.accepted.getOutputStream(), OutboundQueueTest.config(64 << 20, 60000));
+		OutboundQueueTest.fill(queue, 64 << 10);
+		Thread reader = new Thread(() -> {
+			try {
+				InputStream in = this.client.getInputStream();
+				byte[] buffer = new byte[8 << 10];
+				while (in.read(buffer) >= 0) { }
+			} catch (IOException e) { }
+		});
+		reader.start();
+		assertTrue(queue.awaitWritable());
+		assertTrue(queue.queued() <= 16 << 10);
+		assertFalse(this.accepted.isClosed());
+		queue.close();
+		this.client.close();
+		reader.join();
+	}
+
+	public void testClientThatNeitherReadsNorSendsIsEvicted() throws Exception {
+		Server.Config config = OutboundQueueTest.config(64 << 20, 300);
+		config.highWatermark = 32 << 20; // never paused, so only the blocked writer shows the stall
+		OutboundQueue queue = new OutboundQueue(this.accepted, this.accepted.getOutputStream(), config);
+		for (int i = 0; i < 128; i++) { queue.offer(new byte[8 << 10]); }
+		long start = System.currentTimeMillis();
+		while (!this.accepted.isClosed() && System.currentTimeMillis() - start < 5000) { Thread.sleep(10); }
+		assertTrue("the stalled client was never evicted", this.accepted.isClosed());
+		assertTrue(System.currentTimeMillis() - start >= 250);
+		assertEquals(0, queue.queued());
+		assertFalse(queue.awaitWritable());
+		queue.close();
+	}
+}
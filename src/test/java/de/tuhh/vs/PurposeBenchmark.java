@@ -0,0 +1,127 @@
+package de.tuhh.vs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the retained heap of the QueryEngine with PurposeDictionary against the layout it replaced,
+ * which kept the padded purposes of all rows back to back in a byte arena with offset and length columns
+ * (reproduced by Arena with the insert path of that version), on a ledger with recurring purposes.
+ * Only the engines are measured: the database and the Booking objects of clients still hold every purpose.
+ * Also compares the body of a ResolveQuery against that of a ResolveQueryEncoded, first and repeated.
+ * Not a unit test, run it with: java -cp target/classes:target/test-classes de.tuhh.vs.PurposeBenchmark [bookings] [purposes]
+ */
+public class PurposeBenchmark {
+
+	private static final String[] words = {
+		"Rent", "Groceries", "Rental car", "Coffee", "Electricity", "Internet", "Insurance", "Train ticket",
+		"Books", "Gym", "Phone", "Cinema", "Restaurant", "Pharmacy", "Haircut", "Gift"
+	};
+
+	/** keeps the measured structure reachable */
+	private static Object sink;
+
+	/**
+	 * The storage of the QueryEngine before the PurposeDictionary, with its insert path
+	 */
+	private static class Arena {
+		final Map<Integer, Integer> rows = new HashMap<Integer, Integer>(); // id ==> row
+		int size = 0;
+		int[] ids = new int[64];
+		double[] amounts = new double[64];
+		long[] timestamps = new long[64];
+		int[] purposeOffsets = new int[64];
+		int[] purposeLengths = new int[64];
+		byte[] arena = new byte[1024];
+		int arenaUsed = 0;
+
+		void insert(Booking booking) {
+			if (this.size + 1 > this.ids.length) {
+				int length = Math.max(this.ids.length * 2, this.size + 1);
+				this.ids = Arrays.copyOf(this.ids, length);
+				this.amounts = Arrays.copyOf(this.amounts, length);
+				this.timestamps = Arrays.copyOf(this.timestamps, length);
+				this.purposeOffsets = Arrays.copyOf(this.purposeOffsets, length);
+				this.purposeLengths = Arrays.copyOf(this.purposeLengths, length);
+			}
+			byte[] purpose = booking.getPurposeBytes();
+			if (this.arenaUsed + purpose.length > this.arena.length) {
+				this.arena = Arrays.copyOf(this.arena, Math.max(this.arena.length * 2, this.arenaUsed + purpose.length));
+			}
+			System.arraycopy(purpose, 0, this.arena, this.arenaUsed, purpose.length);
+			int row = this.size++;
+			this.ids[row] = booking.getKey();
+			this.amounts[row] = booking.getAmount();
+			this.timestamps[row] = booking.getTimestamp();
+			this.purposeOffsets[row] = this.arenaUsed;
+			this.purposeLengths[row] = purpose.length;
+			this.arenaUsed += purpose.length;
+			this.rows.put(booking.getKey(), row);
+		}
+	}
+
+	private static Booking booking(int i, int distinct) {
+		int purpose = i % distinct;
+		return new Booking(i, PurposeBenchmark.words[purpose % PurposeBenchmark.words.length] +" "+ purpose, i / 100.0, i);
+	}
+
+	/**
+	 * Returns the used heap after garbage collection, the lowest of several attempts
+	 */
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) { }
+			used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%.2f MB", bytes / 1e6);
+	}
+
+	public static void main(String[] args) {
+		int bookings = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int distinct = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+		long before = PurposeBenchmark.usedHeap();
+		Arena arena = new Arena();
+		for (int i = 1; i <= bookings; i++) { arena.insert(PurposeBenchmark.booking(i, distinct)); }
+		PurposeBenchmark.sink = arena;
+		long arenaHeap = PurposeBenchmark.usedHeap() - before;
+		PurposeBenchmark.sink = null;
+
+		before = PurposeBenchmark.usedHeap();
+		PurposeDictionary purposes = new PurposeDictionary();
+		QueryEngine engine = new QueryEngine(purposes, ForkJoinPool.commonPool());
+		for (int i = 1; i <= bookings; i++) { engine.insert(PurposeBenchmark.booking(i, distinct)); }
+		PurposeBenchmark.sink = engine;
+		long engineHeap = PurposeBenchmark.usedHeap() - before;
+
+		System.out.println(bookings +" bookings with "+ purposes.size() +" distinct purposes, retained heap after GC:");
+		System.out.println("arena with offset and length columns: "+ PurposeBenchmark.megabytes(arenaHeap) +" (of which "
+			+ PurposeBenchmark.megabytes(arena.arena.length + 8L * arena.ids.length) +" arena and purpose columns)");
+		System.out.println("purpose id column and dictionary:     "+ PurposeBenchmark.megabytes(engineHeap) +" ("
+			+ String.format("%+.0f%%", 100.0 * (engineHeap - arenaHeap) / arenaHeap) +")");
+
+		ByteBuffer plain = engine.query(new Query());
+		ByteBuffer first = engine.queryEncoded(new Query(), 0);
+		int lastId = first.getInt(0);
+		ByteBuffer again = engine.queryEncoded(new Query(), lastId);
+		int delta = first.limit() - again.limit();
+		System.out.println("ResolveQuery body:        "+ PurposeBenchmark.megabytes(plain.limit()));
+		System.out.println("ResolveQueryEncoded body: "+ PurposeBenchmark.megabytes(first.limit()) +" ("
+			+ String.format("%+.0f%%", 100.0 * (first.limit() - plain.limit()) / plain.limit()) +"), of which "
+			+ delta +" bytes dictionary delta on the first request, "+ PurposeBenchmark.megabytes(again.limit()) +" afterwards");
+	}
+}
@@ -0,0 +1,104 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class QueryEngineTest extends TestCase {
+
+	private static List<Booking> decode(ByteBuffer buffer) {
+		buffer.position(0);
+		List<Booking> all = new ArrayList<Booking>();
+		while (buffer.position() < buffer.limit()) {
+			all.add(new Booking(buffer));
+		}
+		return all;
+	}
+
+	private static Query roundTrip(Query query) {
+		ByteBuffer buffer = ByteBuffer.allocate(query.size());
+		buffer.order(Message.byteOrder);
+		query.write(buffer);
+		buffer.position(0);
+		return new Query(buffer);
+	}
+
+	public void testFilters() {
+		QueryEngine engine = new QueryEngine();
+		engine.insert(new Booking(1, "Rent", 800, 1000));
+		engine.insert(new Booking(2, "Groceries", 42.5, 2000));
+		engine.insert(new Booking(3, "Rental car", 120, 3000));
+
+		assertEquals(3, decode(engine.query(new Query())).size());
+
+		List<Booking> rent = decode(engine.query(roundTrip(new Query().purposeStartsWith("Rent"))));
+		assertEquals(2, rent.size());
+
+		List<Booking> window = decode(engine.query(roundTrip(new Query().timestampBetween(1500, 3000).amountBetween(0, 100))));
+		assertEquals(1, window.size());
+		assertTrue(window.get(0).equals(new Booking(2, "Groceries", 42.5, 2000)));
+
+		assertEquals(1, decode(engine.query(roundTrip(new Query().purposeContains("car")))).size());
+	}
+
+	public void testPurposeDictionary() {
+		PurposeDictionary purposes = new PurposeDictionary();
+		QueryEngine engine = new QueryEngine(purposes, ForkJoinPool.commonPool());
+		engine.insert(new Booking(1, "Rent", 800, 1000));
+		engine.insert(new Booking(2, "Rent", 810, 2000));
+		engine.insert(new Booking(3, "Groceries", 42.5, 3000));
+		assertEquals(2, purposes.size());
+
+		ByteBuffer first = engine.queryEncoded(new Query(), 0);
+		first.position(0);
+		int lastId = first.getInt();
+		assertEquals(2, first.getInt());
+		assertEquals(4 + 4 + 2 * 4 + 2 * 4 + 8 + 16 + 3 * (4 + 4 + 8 + 8), first.limit());
+
+		ByteBuffer again = engine.queryEncoded(new Query(), lastId);
+		again.position(4);
+		assertEquals(0, again.getInt());
+
+		engine.delete(3);
+		engine.update(new Booking(2, "Groceries", 42.5, 3000));
+		assertEquals(2, purposes.size());
+		engine.delete(2);
+		assertEquals(1, purposes.size());
+		assertEquals(1, decode(engine.query(new Query().purposeStartsWith("Rent"))).size());
+	}
+
+	public void testWritesStayInSync() {
+		QueryEngine engine = new QueryEngine();
+		for (int i = 1; i <= 20000; i++) {
+			engine.insert(new Booking(i, i % 2 == 0 ? "even" : "odd", i, i));
+		}
+		for (int i = 1; i <= 20000; i += 4) {
+			engine.delete(i);
+		}
+		engine.update(new Booking(2, "odd", 2, 2));
+		assertEquals(15000, engine.size());
+		assertEquals(5000 + 1, decode(engine.query(new Query().purposeStartsWith("odd"))).size());
+		assertEquals(10000 - 1, decode(engine.query(new Query().purposeStartsWith("even"))).size());
+		assertEquals(0, decode(engine.query(new Query().idBetween(1, 1))).size());
+	}
+
+	public void testPurposeScanAfterChurn() {
+		QueryEngine engine = new QueryEngine();
+		engine.insert(new Booking(1, "Rent", 800, 1000));
+		// every purpose ever interned gets a new id, which must not make purpose scans grow
+		for (int i = 2; i < 50000; i++) {
+			engine.insert(new Booking(i, "Temporary "+ i, i, i));
+			engine.delete(i);
+		}
+		engine.insert(new Booking(50000, "Rental car", 120, 3000));
+		engine.insert(new Booking(50001, "Groceries", 40, 4000));
+		assertEquals(3, engine.size());
+		assertEquals(2, decode(engine.query(new Query().purposeStartsWith("Rent"))).size());
+		assertEquals(1, decode(engine.query(new Query().purposeStartsWith("Rental"))).size());
+		assertEquals(1, decode(engine.query(new Query().purposeContains("ocer"))).size());
+		assertEquals(0, decode(engine.query(new Query().purposeStartsWith("Temporary"))).size());
+	}
+}
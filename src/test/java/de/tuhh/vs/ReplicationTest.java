@@ -0,0 +1,103 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import de.tuhh.vs.Message.ProtocolError;
+import de.tuhh.vs.Message.MessageType;
+
+public class ReplicationTest extends TempDirectoryTestCase {
+
+	@SuppressWarnings("unchecked")
+	public void testFollowersCatchUp() throws Exception {
+		ReplicationLog log = new ReplicationLog(2);
+		BiConsumer<Message, Consumer<Message>> handler = Handler.getHandler(this.tempDirectory(), log);
+		try (
+			Server server = new Server(0, handler);
+			ReplicationLeader leader = new ReplicationLeader(0, log, handler);
+			Client client = new Client(server.getPort());
+		) {
+			client.insert(new Booking("Rent", 800)).get();
+
+			// joins with a snapshot
+			ReplicationFollower early = new ReplicationFollower("localhost", leader.getPort(), new QueryEngine());
+			assertTrue(early.await(log.lastSeq(), 5000));
+
+			client.insert(new Booking("Groceries", 40)).get();
+			client.insert(new Booking("Rental car", 120)).get();
+			client.insert(new Booking("Coffee", 2.5)).get();
+
+			// joins after more writes than the log retains
+			ReplicationFollower late = new ReplicationFollower("localhost", leader.getPort(), new QueryEngine());
+			try (
+				Server replica = new Server(0, Handler.getReplicaHandler(late.engine));
+				Client reader = new Client(replica.getPort());
+			) {
+				assertTrue(early.await(log.lastSeq(), 5000));
+				assertTrue(late.await(log.lastSeq(), 5000));
+				assertEquals(4, early.engine.size());
+				assertEquals(4, ((Vector<Booking>) reader.getAll().get()).size());
+				assertEquals(2, ((Vector<Booking>) reader.query(new Query().purposeStartsWith("R")).get()).size());
+
+				try {
+					reader.insert(new Booking("Toast", 0.7)).get();
+					fail("replica accepted a write");
+				} catch (ExecutionException e) {
+					assertEquals(MessageType.ErrorReadOnly, ((ProtocolError) e.getCause()).messageType);
+				}
+			} finally {
+				early.close();
+				late.close();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testReconnectingFollowerReceivesOnlyTheTail() throws Exception {
+		ReplicationLog log = new ReplicationLog(100);
+		BiConsumer<Message, Consumer<Message>> handler = Handler.getHandler(this.tempDirectory(), log);
+		try (
+			Server server = new Server(0, handler);
+			ReplicationLeader leader = new ReplicationLeader(0, log, handler);
+			Client client = new Client(server.getPort());
+		) {
+			client.insert(new Booking("Rent", 800)).get();
+			ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort(), new QueryEngine());
+			try {
+				assertTrue(follower.await(log.lastSeq(), 5000));
+				assertEquals(1, follower.snapshots());
+				long seq = follower.seq();
+
+				leader.disconnect(); // the follower waits a second before it reconnects
+				Booking groceries = new Booking("Groceries", 40);
+				groceries.setKey((Integer) client.insert(groceries).get());
+				client.insert(new Booking("Coffee", 2.5)).get();
+				client.delete(groceries).get();
+				assertEquals("the writes happened while the follower was disconnected", seq, follower.seq());
+
+				assertTrue(follower.await(log.lastSeq(), 5000));
+				assertEquals("the follower caught up from the log tail", 1, follower.snapshots());
+				Vector<Booking> all = (Vector<Booking>) client.getAll().get();
+				assertEquals(all.size(), follower.engine.size());
+				ByteBuffer buffer = follower.engine.query(new Query());
+				buffer.position(0);
+				Map<Integer, Booking> replicated = new HashMap<Integer, Booking>();
+				while (buffer.position() < buffer.limit()) {
+					Booking booking = new Booking(buffer);
+					replicated.put(booking.getKey(), booking);
+				}
+				assertEquals(2, replicated.size());
+				for (Booking booking : all) {
+					assertTrue(booking +" was not replicated", booking.equals(replicated.get(booking.getKey())));
+				}
+			} finally {
+				follower.close();
+			}
+		}
+	}
+}
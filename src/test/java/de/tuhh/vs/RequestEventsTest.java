@@ -0,0 +1,94 @@
+package de.tuhh.vs;
+
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class RequestEventsTest extends TempDirectoryTestCase {
+
+	private static Message request(MessageType type, ByteBuffer body, long connection, short id) {
+		Message request = new Message(type, body);
+		request.connection = connection;
+		request.id = id;
+		return request;
+	}
+
+	private static List<String> events(List<RecordedEvent> events, String name, short messageId) {
+		List<String> found = new ArrayList<String>();
+		for (RecordedEvent event : events) {
+			if (!event.getEventType().getName().equals(name) || event.getShort("messageId") != messageId) { continue; }
+			assertEquals(3, event.getLong("connection"));
+			if (event.hasField("type")) { found.add(event.getString("type")); }
+			else if (event.hasField("operation")) { found.add(event.getString("operation")); }
+			else { found.add(name); }
+		}
+		return found;
+	}
+
+	public void testInsertAndGetAllAreRecorded() throws Exception {
+		Configuration settings;
+		try (
+			InputStreamReader reader = new InputStreamReader(RequestEventsTest.class.getResourceAsStream("/requests.jfc"), StandardCharsets.UTF_8);
+		) {
+			settings = Configuration.create(reader);
+		}
+		Path file = this.tempFile("recording").toPath();
+		try (
+			Recording recording = new Recording(settings);
+		) {
+			recording.start();
+			Dispatcher handler = Handler.getDispatcher(this.tempDirectory(), null, null);
+			Booking booking = new Booking("Rent", 800);
+			ByteBuffer body = ByteBuffer.allocate(booking.size());
+			body.order(Message.byteOrder);
+			booking.write(body);
+			body.position(0);
+			handler.accept(RequestEventsTest.request(MessageType.CallInsert, body, 3, (short) 7), response -> { });
+			handler.accept(RequestEventsTest.request(MessageType.CallGetAll, ByteBuffer.allocate(0), 3, (short) 8), response -> { });
+			recording.stop();
+			recording.dump(file);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+		assertEquals("[CallInsert]", RequestEventsTest.events(events, "de.tuhh.vs.Handle", (short) 7).toString());
+		assertEquals("[de.tuhh.vs.Decode]", RequestEventsTest.events(events, "de.tuhh.vs.Decode", (short) 7).toString());
+		assertEquals("[FlatDB.insert, QueryEngine.insert]", RequestEventsTest.events(events, "de.tuhh.vs.Storage", (short) 7).toString());
+
+		assertEquals("[CallGetAll]", RequestEventsTest.events(events, "de.tuhh.vs.Handle", (short) 8).toString());
+		assertEquals("[de.tuhh.vs.Decode]", RequestEventsTest.events(events, "de.tuhh.vs.Decode", (short) 8).toString());
+		assertEquals("[FlatDB.iterator]", RequestEventsTest.events(events, "de.tuhh.vs.Storage", (short) 8).toString());
+	}
+
+	public void testDisabledEventsAreNotAllocated() {
+		Message request = RequestEventsTest.request(MessageType.CallGetAll, null, 1, (short) 1);
+		assertNull(RequestEvents.frameRead(1, (short) 1, 0));
+		assertNull(RequestEvents.decode(request));
+		assertNull(RequestEvents.handle(request));
+		assertNull(RequestEvents.storage(request, "FlatDB.get"));
+		assertNull(RequestEvents.responseWrite(1, (short) 1, request));
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int round = 0; round < 2; round++) { // the first round warms up
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < 100000; i++) {
+				RequestEvents.commit(RequestEvents.handle(request));
+				RequestEvents.commit(RequestEvents.decode(request));
+				RequestEvents.commit(RequestEvents.storage(request, "FlatDB.get"));
+			}
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+			if (round == 1) { assertTrue(allocated +" bytes allocated by 300000 disabled events", allocated < 10000); }
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package de.tuhh.vs;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class ServerTest extends TestCase {
+
+	/** answers every request with a ResolveGetAll that echoes its body */
+	private static final BiConsumer<Message, Consumer<Message>> echo =
+		(request, response) -> response.accept(new Message(MessageType.ResolveGetAll, request.body));
+
+	private static byte[] header(short messageId, MessageType type, long length) {
+		ByteBuffer header = ByteBuffer.allocate(Message.headerLength);
+		header.order(Message.byteOrder);
+		header.put(Message.version);
+		header.putShort(messageId);
+		header.put(type.get());
+		header.putLong(length);
+		return header.array();
+	}
+
+	public void testOversizedLengthIsRejected() throws Exception {
+		Server.Config config = new Server.Config();
+		config.maxBodyLength = 1024;
+		for (long length : new long[] { 1025, 1L << 40, -1 }) {
+			try (
+				Server server = new Server(0, ServerTest.echo, config);
+				Socket socket = new Socket(InetAddress.getLocalHost(), server.getPort());
+			) {
+				socket.getOutputStream().write(ServerTest.header((short) 7, MessageType.CallGetAll, length));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				Message response = Message.read(in);
+				assertEquals(7, response.id);
+				assertEquals(MessageType.InvalidBodyLength, response.type);
+				assertEquals("the connection stays open after a length of "+ length, -1, in.read());
+			}
+		}
+	}
+
+	public void testBodyIsReadFully() throws Exception {
+		byte[] body = new byte[200000];
+		for (int i = 0; i < body.length; i++) { body[i] = (byte) i; }
+		try (
+			Server server = new Server(0, ServerTest.echo);
+			Socket socket = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			OutputStream out = socket.getOutputStream();
+			out.write(ServerTest.header((short) 1, MessageType.CallGetAll, body.length));
+			out.write(body, 0, 1000);
+			out.flush();
+			Thread.sleep(100); // the server must wait for the rest instead of handling a short body
+			out.write(body, 1000, body.length - 1000);
+			out.flush();
+			Message response = Message.read(new DataInputStream(socket.getInputStream()));
+			assertEquals(MessageType.ResolveGetAll, response.type);
+			assertEquals(body.length, response.body.limit());
+			for (int i = 0; i < body.length; i++) { assertEquals(body[i], response.body.get(i)); }
+		}
+	}
+
+	public void testRateLimitRespondsErrorOverloaded() throws Exception {
+		Server.Config config = new Server.Config();
+		config.rate = 0.001;
+		config.burst = 3;
+		try (
+			Server server = new Server(0, ServerTest.echo, config);
+			Socket socket = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			OutputStream out = socket.getOutputStream();
+			for (short id = 1; id <= 5; id++) { out.write(new Message(MessageType.CallGetAll, null).frame(id)); }
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			Map<Short, MessageType> responses = new HashMap<Short, MessageType>();
+			for (int i = 0; i < 5; i++) {
+				Message response = Message.read(in);
+				responses.put(response.id, response.type);
+			}
+			for (short id = 1; id <= 3; id++) { assertEquals(MessageType.ResolveGetAll, responses.get(id)); }
+			for (short id = 4; id <= 5; id++) { assertEquals(MessageType.ErrorOverloaded, responses.get(id)); }
+		}
+	}
+
+	public void testConnectionLimitRespondsErrorOverloaded() throws Exception {
+		Server.Config config = new Server.Config();
+		config.maxConnections = 1;
+		try (
+			Server server = new Server(0, ServerTest.echo, config);
+			Client first = new Client(server.getPort());
+			Socket second = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			first.getAll().get(); // the first connection is registered
+			DataInputStream in = new DataInputStream(second.getInputStream());
+			assertEquals(MessageType.ErrorOverloaded, Message.read(in).type);
+			assertEquals(-1, in.read());
+		}
+	}
+
+	public void testMaxPendingRespondsErrorOverloaded() throws Exception {
+		Server.Config config = new Server.Config();
+		config.maxPending = 1;
+		CompletableFuture<Message> held = new CompletableFuture<Message>();
+		AsyncHandler handler = request -> request.id == 1 ? held : CompletableFuture.completedFuture(new Message(MessageType.ResolveGetAll, null));
+		try (
+			Server server = new Server(0, handler, config);
+			Socket socket = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			OutputStream out = socket.getOutputStream();
+			out.write(new Message(MessageType.CallGetAll, null).frame((short) 1));
+			out.write(new Message(MessageType.CallGetAll, null).frame((short) 2));
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			Message rejected = Message.read(in);
+			assertEquals(2, rejected.id);
+			assertEquals(MessageType.ErrorOverloaded, rejected.type);
+
+			held.complete(new Message(MessageType.ResolveGetAll, null));
+			Message first = Message.read(in);
+			assertEquals(1, first.id);
+			assertEquals(MessageType.ResolveGetAll, first.type);
+
+			out.write(new Message(MessageType.CallGetAll, null).frame((short) 3));
+			out.flush();
+			Message third = Message.read(in);
+			assertEquals("the completed request is no longer pending", 3, third.id);
+			assertEquals(MessageType.ResolveGetAll, third.type);
+		}
+	}
+
+	public void testPipelinedRequestsKeepTheirOrder() throws Exception {
+		ExecutorService io = Executors.newFixedThreadPool(4);
+		AtomicInteger written = new AtomicInteger(0);
+		Dispatcher dispatcher = new Dispatcher(io)
+			.register(MessageType.CallInsert, Dispatcher.none, (request, none) -> {
+				Thread.sleep(200); // a slow write, which the following read of the same client must still see
+				written.incrementAndGet();
+				return MessageType.ResolveInsert;
+			}, Dispatcher.empty)
+			.register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> {
+				ByteBuffer buffer = ByteBuffer.allocate(4);
+				buffer.order(Message.byteOrder);
+				buffer.putInt(written.get());
+				return buffer;
+			}, Dispatcher.body(MessageType.ResolveGetAll));
+		try (
+			Server server = new Server(0, dispatcher::handle, new Server.Config());
+			Socket socket = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			OutputStream out = socket.getOutputStream();
+			out.write(new Message(MessageType.CallInsert, null).frame((short) 1));
+			out.write(new Message(MessageType.CallGetAll, null).frame((short) 2));
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			Message insert = Message.read(in);
+			assertEquals(1, insert.id);
+			assertEquals(MessageType.ResolveInsert, insert.type);
+			Message all = Message.read(in);
+			assertEquals(2, all.id);
+			assertEquals("the read ran after the write", 1, all.body.getInt(0));
+		} finally {
+			io.shutdown();
+		}
+	}
+
+	public void testHeavyConnectionDoesNotStarveLightOne() throws Exception {
+		ExecutorService io = Executors.newSingleThreadExecutor();
+		AtomicInteger heavyDone = new AtomicInteger(0);
+		AtomicInteger heavyBeforeLight = new AtomicInteger(-1);
+		Dispatcher dispatcher = new Dispatcher(io)
+			.register(MessageType.CallGetAll, Dispatcher.none, (request, none) -> {
+				Thread.sleep(10);
+				heavyDone.incrementAndGet();
+				return MessageType.ResolveGetAll;
+			}, Dispatcher.empty)
+			.register(MessageType.CallQuery, Dispatcher.none, (request, none) -> {
+				heavyBeforeLight.set(heavyDone.get());
+				return MessageType.ResolveQuery;
+			}, Dispatcher.empty);
+		Server.Config config = new Server.Config();
+		config.workers = 1;
+		try (
+			Server server = new Server(0, dispatcher::handle, config);
+			Socket heavy = new Socket(InetAddress.getLocalHost(), server.getPort());
+			Socket light = new Socket(InetAddress.getLocalHost(), server.getPort());
+		) {
+			OutputStream out = heavy.getOutputStream();
+			for (short id = 1; id <= 50; id++) { out.write(new Message(MessageType.CallGetAll, null).frame(id)); }
+			out.flush();
+			Thread.sleep(50); // the heavy connection has its requests queued
+			light.getOutputStream().write(new Message(MessageType.CallQuery, null).frame((short) 1));
+			Message response = Message.read(new DataInputStream(light.getInputStream()));
+			assertEquals(MessageType.ResolveQuery, response.type);
+			assertTrue("the light request waited for "+ heavyBeforeLight.get() +" heavy ones", heavyBeforeLight.get() < 10);
+		} finally {
+			io.shutdownNow();
+		}
+	}
+}
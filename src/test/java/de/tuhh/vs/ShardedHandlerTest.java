@@ -0,0 +1,118 @@
+package de.tuhh.vs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.tuhh.vs.Message.MessageType;
+
+public class ShardedHandlerTest extends TempDirectoryTestCase {
+
+	private static ByteBuffer body(Booking... bookings) {
+		int length = 0;
+		for (Booking booking : bookings) { length += booking.size(); }
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(Message.byteOrder);
+		for (Booking booking : bookings) { booking.write(buffer); }
+		buffer.position(0);
+		return buffer;
+	}
+
+	private static Message call(AsyncHandler handler, MessageType type, ByteBuffer body) throws Exception {
+		return handler.handle(new Message(type, body)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+	}
+
+	private static List<Booking> getAll(AsyncHandler handler) throws Exception {
+		Message response = ShardedHandlerTest.call(handler, MessageType.CallGetAll, ByteBuffer.allocate(0));
+		assertEquals(MessageType.ResolveGetAll, response.type);
+		List<Booking> all = new ArrayList<Booking>();
+		response.body.position(0);
+		while (response.body.position() < response.body.limit()) { all.add(new Booking(response.body)); }
+		return all;
+	}
+
+	private static Booking find(List<Booking> bookings, int id) {
+		for (Booking booking : bookings) {
+			if (booking.getKey() == id) { return booking; }
+		}
+		return null;
+	}
+
+	public void testIdEncoding() {
+		for (int count : new int[] { 1, 3, 7 }) {
+			for (int local : new int[] { 0, 1, 2, 1000, Integer.MAX_VALUE / count - 1 }) {
+				for (int shard = 0; shard < count; shard++) {
+					int global = ShardedHandler.globalId(local, shard, count);
+					assertEquals(shard, ShardedHandler.shardOf(global, count));
+					assertEquals(local, ShardedHandler.localId(global, count));
+				}
+			}
+		}
+		assertEquals(Integer.MAX_VALUE, ShardedHandler.globalId(Integer.MAX_VALUE / 3, Integer.MAX_VALUE % 3, 3));
+		try {
+			ShardedHandler.globalId(Integer.MAX_VALUE / 3, Integer.MAX_VALUE % 3 + 1, 3);
+			fail("global id overflowed");
+		} catch (ArithmeticException e) { }
+		try {
+			ShardedHandler.globalId(Integer.MAX_VALUE / 3 + 1, 0, 3);
+			fail("global id overflowed");
+		} catch (ArithmeticException e) { }
+	}
+
+	public void testWritesAcrossShards() throws Exception {
+		AsyncHandler handler = AsyncHandler.from(ShardedHandler.getHandler(this.tempDirectory(), 3));
+		List<Booking> inserted = new ArrayList<Booking>();
+		for (int i = 0; i < 6; i++) {
+			Booking booking = new Booking(0, "Booking "+ i, i, 1000 + i);
+			Message response = ShardedHandlerTest.call(handler, MessageType.CallInsert, ShardedHandlerTest.body(booking));
+			assertEquals(MessageType.ResolveInsert, response.type);
+			booking.setKey(response.body.getInt(0));
+			assertEquals("inserts are assigned round robin", i % 3, ShardedHandler.shardOf(booking.getKey(), 3));
+			inserted.add(booking);
+		}
+		List<Booking> all = ShardedHandlerTest.getAll(handler);
+		assertEquals(6, all.size());
+		for (Booking booking : inserted) {
+			assertTrue(booking.equals(ShardedHandlerTest.find(all, booking.getKey())));
+		}
+
+		// edit and delete are routed to the shard of the id
+		Booking old = inserted.get(4);
+		Booking now = new Booking(old.getKey(), "Edited", 44, old.getTimestamp());
+		assertEquals(MessageType.ResolveEdit, ShardedHandlerTest.call(handler, MessageType.CallEdit, ShardedHandlerTest.body(old, now)).type);
+		assertEquals(MessageType.ErrorChangeEntyChanged, ShardedHandlerTest.call(handler, MessageType.CallEdit, ShardedHandlerTest.body(old, now)).type);
+		Booking other = new Booking(inserted.get(3).getKey(), "Edited", 44, old.getTimestamp());
+		assertEquals(MessageType.ErrorChangeIdMismatch, ShardedHandlerTest.call(handler, MessageType.CallEdit, ShardedHandlerTest.body(old, other)).type);
+
+		assertEquals(MessageType.ErrorDeleteEntyChanged, ShardedHandlerTest.call(handler, MessageType.CallDelete, ShardedHandlerTest.body(old)).type);
+		assertEquals(MessageType.ResolveDelete, ShardedHandlerTest.call(handler, MessageType.CallDelete, ShardedHandlerTest.body(now)).type);
+		assertEquals(MessageType.ResolveDelete, ShardedHandlerTest.call(handler, MessageType.CallDelete, ShardedHandlerTest.body(inserted.get(0))).type);
+		assertEquals(MessageType.ErrorDeleteEntyChanged, ShardedHandlerTest.call(handler, MessageType.CallDelete, ShardedHandlerTest.body(inserted.get(0))).type);
+
+		all = ShardedHandlerTest.getAll(handler);
+		assertEquals(4, all.size());
+		assertNull(ShardedHandlerTest.find(all, now.getKey()));
+		assertNull(ShardedHandlerTest.find(all, inserted.get(0).getKey()));
+		for (int i : new int[] { 1, 2, 3, 5 }) {
+			assertTrue(inserted.get(i).equals(ShardedHandlerTest.find(all, inserted.get(i).getKey())));
+		}
+
+		ByteBuffer query = ByteBuffer.allocate(new Query().purposeStartsWith("Booking 1").size());
+		query.order(Message.byteOrder);
+		new Query().purposeStartsWith("Booking 1").write(query);
+		query.position(0);
+		Message matched = ShardedHandlerTest.call(handler, MessageType.CallQuery, query);
+		assertEquals(MessageType.ResolveQuery, matched.type);
+		matched.body.position(0);
+		assertTrue(inserted.get(1).equals(new Booking(matched.body)));
+		assertEquals(matched.body.limit(), matched.body.position());
+	}
+
+	public void testUnsupportedAndErrorMessages() throws Exception {
+		AsyncHandler handler = ShardedHandler.getDispatcher(this.tempDirectory(), 2, null)::handle;
+		assertNull("error messages are not answered", ShardedHandlerTest.call(handler, MessageType.ErrorOverloaded, null));
+		Message response = ShardedHandlerTest.call(handler, MessageType.CallGetAllIfChanged, ByteBuffer.allocate(16));
+		assertEquals("calls with the high bit set are not error messages", MessageType.InvalidPacketType, response.type);
+	}
+}
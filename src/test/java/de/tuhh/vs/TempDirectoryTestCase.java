@@ -0,0 +1,51 @@
+package de.tuhh.vs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Base of the tests that need database directories or other files, which are deleted after each test
+ */
+public abstract class TempDirectoryTestCase extends TestCase {
+
+	private final List<File> files = new ArrayList<File>();
+
+	/**
+	 * Returns a path in the temporary directory that is deleted after the test, the file itself is not created
+	 * @param	name	Part of the file name, to tell the files of a test apart
+	 * @return			The file
+	 */
+	protected File tempFile(String name) {
+		File file = new File(System.getProperty("java.io.tmpdir"), this.getClass().getSimpleName() +"-"+ name +"-"+ System.nanoTime());
+		this.files.add(file);
+		return file;
+	}
+
+	/**
+	 * Creates an empty directory that is deleted after the test, e.g. for a database
+	 * @return	The path of the directory
+	 */
+	protected String tempDirectory() {
+		File directory = this.tempFile("db");
+		directory.mkdirs();
+		return directory.getPath();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) { TempDirectoryTestCase.delete(child); }
+		}
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : this.files) { TempDirectoryTestCase.delete(file); }
+		this.files.clear();
+		super.tearDown();
+	}
+}
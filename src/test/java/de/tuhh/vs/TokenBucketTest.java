@@ -0,0 +1,33 @@
+package de.tuhh.vs;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+	private static final long second = 1000000000L;
+
+	public void testBurstThenRate() {
+		TokenBucket bucket = new TokenBucket(10, 5, 0);
+		for (int i = 0; i < 5; i++) { assertTrue(bucket.tryAcquire(0)); }
+		assertFalse("more than the burst was allowed at once", bucket.tryAcquire(0));
+
+		assertFalse(bucket.tryAcquire(second / 20)); // half a token
+		assertTrue(bucket.tryAcquire(second / 10));
+		assertFalse(bucket.tryAcquire(second / 10));
+
+		// ten requests per second are sustained, one every 100ms
+		for (int i = 2; i <= 20; i++) {
+			assertFalse(bucket.tryAcquire(i * second / 10 - second / 50));
+			assertTrue(bucket.tryAcquire(i * second / 10));
+		}
+	}
+
+	public void testRefillIsCappedAtBurst() {
+		TokenBucket bucket = new TokenBucket(1000, 3, 0);
+		for (int i = 0; i < 3; i++) { assertTrue(bucket.tryAcquire(0)); }
+		assertFalse(bucket.tryAcquire(0));
+		long later = 60 * second; // idle for a minute
+		for (int i = 0; i < 3; i++) { assertTrue(bucket.tryAcquire(later)); }
+		assertFalse("an idle bucket refilled beyond its burst", bucket.tryAcquire(later));
+	}
+}